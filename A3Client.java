@@ -21,42 +21,94 @@ import ca.uwaterloo.watca.ExecutionLogger;
 
 // $JAVA_HOME/bin/java A3Client $ZKSTRING /$USER 4 10 1000
 // -> manta address
-// -> $USER
+// -> $USER (or several replica groups: /$USER-0,/$USER-1,/$USER-2 -> keys are sharded over them, see ShardRouter)
 // -> 4 threads
 // -> 10 seconds
 // -> keys drawn from a set of 1000
+//
+// workload and reporting flags (see Workload for the key / value options):
+//   --read-ratio=0.9 --keys=zipf --value-size=100-4000     what to send
+//   --rate=N          open loop: N ops/s in total at fixed intervals, latency counted from when each op was due,
+//                     so a stall shows up in the tail instead of silently lowering the request rate
+//   --warmup=S        run S seconds before measuring
+//   --csv=FILE --json=FILE   also write the results there
+//   --near-cache=N    cache up to N values per group in the client (see NearCache), --near-cache-stale-ms=MS bounds how
+//                     stale a cached read can be (default 100); prints the hit ratio and how many gets/s still reached
+//                     the primaries, e.g. --read-ratio=0.99 --keys=zipf with and without it
+//                     (cached reads are bounded-stale, so the linearizability check will flag some of them)
+//   --virtual-threads run every simulated client on a virtual thread (Java 21), for tens of thousands of sessions;
+//                     each one still has its own pooled connection (the pools are sized to the number of threads)
 
 
 // keyword implements is used to indicate that a class is adopting a particular interface.
 // An interface in Java defines a contract or a set of methods that a class implementing that interface must implement
-public class A3Client implements CuratorWatcher {
+public class A3Client {
     static Logger log;
     
     String zkConnectString;
-    String zkNode;
+    List<String> zkNodes;																	// one ZooKeeper path per primary/backup group
+    int vnodes;																				// virtual nodes per group on the hash ring
     int numThreads;
     int numSeconds;
     int keySpaceSize;
+    int batchSize;																			// keys per multiGet/multiPut RPC, 1 = plain get/put
+    boolean readBackup;																		// send half of the reads to the backup (needs --read-lease-ms on the servers)
+    int chainLength;																		// chain replication: read from the tail of the first chainLength members
+    int nearCache;																			// values cached per group in the client, 0 = off
+    long nearCacheStaleMs;
+    java.util.concurrent.ThreadFactory workerThreads;										// --virtual-threads, null = platform threads
     CuratorFramework curClient;
     volatile boolean done = false;
     AtomicInteger globalNumOps;
-    volatile InetSocketAddress primaryAddress;
+    AtomicLongArray groupNumOps;															// ops per group, to see that the load is spread evenly
+    Workload workload;
+    double rate;																			// total ops/s in open loop mode, 0 = closed loop (every thread goes as fast as it can)
+    int warmupSeconds;
+    volatile boolean measuring = false;														// false during warmup
+    LatencyHistogram readLatency = new LatencyHistogram();									// microseconds, per RPC (per batch with --batch)
+    LatencyHistogram writeLatency = new LatencyHistogram();
+    List<Map<String, Object>> results = new ArrayList<>();									// one row per operation type per run, for --csv / --json
+    ShardRouter router;
     ExecutionLogger exlog;
 
     public static void main(String [] args) throws Exception {
-		if (args.length != 5) {
-			System.err.println("Usage: java A3Client zkconnectstring zknode num_threads num_seconds keyspace_size");
+		Options opts = new Options(args);
+		if (opts.numPositional() != 5) {
+			System.err.println("Usage: java A3Client zkconnectstring zknode[,zknode...] num_threads num_seconds keyspace_size [--batch=N] [--vnodes=N] [--scaling] [--read-backup] [--chain=N] [--near-cache=N] [--near-cache-stale-ms=MS] [--virtual-threads] [--read-ratio=F] [--keys=uniform|zipf|hotspot] [--zipf-theta=F] [--hot-keys=F] [--hot-ops=F] [--value-size=N|MIN-MAX|exp:MEAN] [--rate=N] [--warmup=S] [--csv=FILE] [--json=FILE]");
 			System.exit(-1);
 		}
 
 		BasicConfigurator.configure();
 		log = Logger.getLogger(A3Client.class.getName());
 
-		A3Client client = new A3Client(args[0], args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+		A3Client client = new A3Client(opts.get(0), opts.get(1), Integer.parseInt(opts.get(2)), Integer.parseInt(opts.get(3)), Integer.parseInt(opts.get(4)));
+		client.batchSize = opts.getInt("batch", 1);											// --batch=N switches the threads over to multiGet/multiPut with N keys per RPC
+		client.vnodes = opts.getInt("vnodes", 128);
+		client.readBackup = opts.getBoolean("read-backup");
+		client.chainLength = opts.getInt("chain", 0);												// --chain=N: servers run --replication=chain --rf=N, reads go to the tail
+		client.nearCache = opts.getInt("near-cache", 0);
+		client.nearCacheStaleMs = opts.getInt("near-cache-stale-ms", 100);
+		client.workload = new Workload(opts, client.keySpaceSize);
+		if (opts.getBoolean("virtual-threads")) {
+			client.workerThreads = VirtualThreads.factory("client-");
+		}
+		client.rate = opts.getDouble("rate", 0);
+		client.warmupSeconds = opts.getInt("warmup", 0);
+		boolean scaling = opts.getBoolean("scaling");								// --scaling runs the workload on 1, 2, ..., N groups and prints throughput for each
 
 		try {
 			client.start();							// this is a method defined in this class -> This initializes the connection to ZooKeeper (currator) and starts the execution logger
-			client.execute();						// this is a method defined in this class -> This is where the main logic of the program resides. It performs the key-value operations and measures performance metrics.
+			if (scaling) {
+				client.executeScaling();
+			} else {
+				client.execute(client.zkNodes);		// this is a method defined in this class -> This is where the main logic of the program resides. It performs the key-value operations and measures performance metrics.
+			}
+			if (opts.has("csv")) {
+				client.writeCsv(opts.getString("csv", ""));
+			}
+			if (opts.has("json")) {
+				client.writeJson(opts.getString("json", ""));
+			}
 		} catch (Exception e) {
 			log.error("Uncaught exception", e);
 		} finally {
@@ -67,12 +119,13 @@ public class A3Client implements CuratorWatcher {
 	// client constructor that is called in main()
     A3Client(String zkConnectString, String zkNode, int numThreads, int numSeconds, int keySpaceSize) {
 		this.zkConnectString = zkConnectString; 
-		this.zkNode = zkNode;
+		this.zkNodes = Arrays.asList(zkNode.split(","));
+		this.vnodes = 128;
 		this.numThreads = numThreads;
 		this.numSeconds = numSeconds;
 		this.keySpaceSize = keySpaceSize;
+		this.batchSize = 1;
 		globalNumOps = new AtomicInteger();
-		primaryAddress = null;
 		exlog = new ExecutionLogger("execution.log");
     }
 
@@ -89,146 +142,303 @@ public class A3Client implements CuratorWatcher {
 		exlog.start();
     }
 
-    void execute() throws Exception {
-		primaryAddress = getPrimary();														// calls the getPrimary method to obtain the socket address of the Primary Server in the "Key-Value Service" 
+    // run the workload against the given groups, returns the aggregate throughput in ops/s
+    int execute(List<String> groups) throws Exception {
+		router = new ShardRouter(curClient, groups, vnodes, numThreads, 5000);			// finds the primary of every group and watches each one separately
+		for (int g = 0; g < groups.size(); g++) {
+			router.client(g).setReadFromBackup(readBackup);
+			router.client(g).setChainLength(chainLength);
+			router.client(g).setNearCache(nearCache, nearCacheStaleMs);
+		}
+		router.start();
+		done = false;
+		measuring = false;
+		globalNumOps.set(0);
+		groupNumOps = new AtomicLongArray(groups.size());
+		readLatency.reset();
+		writeLatency.reset();
 		List<Thread> tlist = new ArrayList<>();												// a list of Threads
-		List<MyRunnable> rlist = new ArrayList<>();											// a list of the Threads' corresponding Runnables -> a class that we defined below
 		for (int i = 0; i < numThreads; i++) {												// 'numThreads' is passed as a parameter into the program
-			MyRunnable r = new MyRunnable();
-			Thread t = new Thread(r);
+			Thread t = (workerThreads != null) ? workerThreads.newThread(new MyRunnable()) : new Thread(new MyRunnable());
 			tlist.add(t);
-			rlist.add(r);
 		}
-		long startTime = System.currentTimeMillis();
 		for (int i = 0; i < numThreads; i++) {												// launch each of the threads
 			tlist.get(i).start();
 		}
 		log.info("Done starting " + numThreads + " threads...");
-		System.out.println("Done starting " + numThreads + " threads...");
+		System.out.println("Done starting " + numThreads + " threads on " + groups.size() + " group(s), " + workload.describe()
+			+ (rate > 0 ? ", open loop at " + (long) rate + " ops/s" : ", closed loop"));
+		if (warmupSeconds > 0) {
+			Thread.sleep(warmupSeconds * 1000);												// warm up connections, JIT and server caches without measuring
+		}
+		long primaryGets = primaryGets(groups.size());
+		long startTime = System.nanoTime();
+		measuring = true;
 		Thread.sleep(numSeconds * 1000);													// sleep ourselves for numSeconds
+		measuring = false;
+		double elapsed = (System.nanoTime() - startTime) / 1e9;
+		primaryGets = primaryGets(groups.size()) - primaryGets;
 		done = true;																		// this should indicate to the threads (executing their runnables) that it is time to finish their jobs
 		for (Thread t: tlist) {
 			t.join(1000);																	// Joins each thread: This waits for each thread to complete or for a maximum of 1 second
-		long estimatedTime = System.currentTimeMillis() - startTime;
-		int tput = (int)(1000f * globalNumOps.get() / estimatedTime);						// calculate the throughput
-		System.out.println("Aggregate throughput: " + tput + " RPCs/s");
-		long totalLatency = 0;
-		for (MyRunnable r: rlist) {
-			totalLatency += r.getTotalTime();												// runable objects contain a variable that containts the amount of time that it took to execute
 		}
-		double avgLatency = (double)totalLatency / globalNumOps.get() / 1000;
-		System.out.println("Average latency: " + ((int)(avgLatency*100))/100f + " ms");
+		int tput = (int)(globalNumOps.get() / elapsed);										// calculate the throughput
+		System.out.println("Aggregate throughput: " + tput + (batchSize > 1 ? " keys/s (" + batchSize + " keys per batch)" : " RPCs/s"));
+		if (groups.size() > 1) {
+			for (int g = 0; g < groups.size(); g++) {
+				System.out.println("  " + router.groupName(g) + ": " + (int)(groupNumOps.get(g) / elapsed) + (batchSize > 1 ? " keys/s" : " RPCs/s"));
+			}
+		}
+		System.out.println("op        count       ops/s      mean(us)  p50(us)   p99(us)   p99.9(us)  max(us)");
+		report(groups.size(), batchSize > 1 ? "multiGet" : "get", readLatency, elapsed);
+		report(groups.size(), batchSize > 1 ? "multiPut" : "put", writeLatency, elapsed);
+		if (nearCache > 0) {
+			reportNearCache(groups.size(), primaryGets, elapsed);
+		}
+		long overloaded = 0;
+		for (int g = 0; g < groups.size(); g++) {
+			overloaded += router.client(g).getOverloaded();
 		}
+		if (overloaded > 0) {																// servers running --admission=aimd shed load
+			System.out.println("Overloaded: " + overloaded + " calls turned away by the servers (warmup included), retried after their hint");
+		}
+		router.close();
+		return tput;
 	}
 
-    void stop() {
-		curClient.close();
-		exlog.stop();
-    }
+	// same workload on the first 1, 2, ..., N groups: throughput should grow about linearly with the number of groups
+	// (use enough threads to keep N primaries busy, e.g. 16 per group)
+	void executeScaling() throws Exception {
+		List<Integer> results = new ArrayList<>();
+		for (int n = 1; n <= zkNodes.size(); n++) {
+			results.add(execute(zkNodes.subList(0, n)));
+		}
+		System.out.println("groups  RPCs/s      speedup");
+		for (int n = 1; n <= results.size(); n++) {
+			System.out.println(String.format("%-7d %-11d %.2fx", n, results.get(n - 1), (double) results.get(n - 1) / Math.max(1, results.get(0))));
+		}
+	}
+
+	void report(int groups, String op, LatencyHistogram h, double elapsed) {
+		System.out.println(String.format("%-9s %-11d %-10d %-9d %-9d %-9d %-10d %d", op, h.getCount(), (long)(h.getCount() / elapsed),
+			(long) h.getMean(), h.getPercentile(0.5), h.getPercentile(0.99), h.getPercentile(0.999), h.getMax()));
+		Map<String, Object> row = new LinkedHashMap<>();
+		row.put("groups", groups);
+		row.put("threads", numThreads);
+		row.put("batch", batchSize);
+		row.put("rate", (long) rate);
+		row.put("workload", workload.describe());
+		row.put("op", op);
+		row.put("count", h.getCount());
+		row.put("ops_per_s", (long)(h.getCount() / elapsed));
+		row.put("mean_us", (long) h.getMean());
+		row.put("p50_us", h.getPercentile(0.5));
+		row.put("p99_us", h.getPercentile(0.99));
+		row.put("p999_us", h.getPercentile(0.999));
+		row.put("max_us", h.getMax());
+		results.add(row);
+	}
 
-    InetSocketAddress getPrimary() throws Exception {											// method is declared to throw an Exception
-		while (true) {																			// continuously attempt to retrieve the primary server's address until success or exception
-			curClient.sync();																	// synchronizes the client's view of the ZooKeeper znode with the actual state in the ZooKeeper ensemble. This ensures that the latest updates are reflected in the client's view.
-			List<String> children = curClient.getChildren().usingWatcher(this).forPath(zkNode); // retrieves the list of children nodes under the specified zkNode [forPath(zkNode)]
-			if (children.size() == 0) {
-				log.error("No primary found");
-				Thread.sleep(100);																// i.e. no Primary Server found -> delay
-				continue;
+	// get (and getVersioned) calls the primaries have answered so far, from their getStats
+	long primaryGets(int groups) {
+		long n = 0;
+		for (int g = 0; g < groups; g++) {
+			try {
+				Long calls = router.client(g).getPrimaryStats().get("get.calls");
+				n += (calls == null) ? 0 : calls;
+			} catch (Exception e) {
+				log.error("Unable to read the stats of " + router.groupName(g), e);
 			}
-			Collections.sort(children);															// sort the children lexicographically
-			byte[] data = curClient.getData().forPath(zkNode + "/" + children.get(0));			// The data of the first child node (which represents the primary server's address) is retrieved -> Q: Why is this the primary replica?
-			String strData = new String(data);
-			String[] primary = strData.split(":");
-			log.info("Found primary " + strData);
-			return new InetSocketAddress(primary[0], Integer.parseInt(primary[1]));				// return the socket address of the primary server from ZooKeeper: IP, port #
 		}
-    }
+		return n;
+	}
 
-    KeyValueService.Client getThriftClient() {
-	while (true) {
-	    try {
-			TSocket sock = new TSocket(primaryAddress.getHostName(), primaryAddress.getPort());
-			TTransport transport = new TFramedTransport(sock);
-			transport.open();
-			TProtocol protocol = new TBinaryProtocol(transport);
-		return new KeyValueService.Client(protocol);
-	    } catch (Exception e) {
-			log.error("Unable to connect to primary");
-	    }
-	    try {
-			Thread.sleep(100);
-	    } catch (InterruptedException e) {}
+	// what the near-caches saved: hit ratio, and the gets that still reached the primaries vs the gets the threads did
+	void reportNearCache(int groups, long primaryGets, double elapsed) {
+		Map<String, Long> total = new HashMap<>();
+		for (int g = 0; g < groups; g++) {
+			Map<String, Long> stats = new LinkedHashMap<>();
+			router.client(g).getNearCache().addStats(stats, "nearCache");
+			System.out.println("  " + router.groupName(g) + " " + stats);
+			stats.forEach((k, v) -> total.merge(k, v, Long::sum));
+		}
+		long hits = total.getOrDefault("nearCache.hits", 0L);
+		long misses = total.getOrDefault("nearCache.misses", 0L);
+		long reads = readLatency.getCount();
+		System.out.println(String.format("Near-cache: %d%% hits, primaries answered %d gets/s for %d client gets/s (%d%% of the reads, stale bound %d ms)",
+			(hits + misses == 0) ? 0 : hits * 100 / (hits + misses), (long)(primaryGets / elapsed), (long)(reads / elapsed),
+			(reads == 0) ? 0 : primaryGets * 100 / reads, nearCacheStaleMs));
 	}
-    }
 
-    synchronized public void process(WatchedEvent event) {
-		log.info("ZooKeeper event " + event);
-		try {
-			primaryAddress = getPrimary();
-		} catch (Exception e) {
-			log.error("Unable to determine primary");
-		}		
+	void writeCsv(String file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			out.println(String.join(",", results.get(0).keySet()));
+			for (Map<String, Object> row : results) {
+				StringBuilder sb = new StringBuilder();
+				for (Object v : row.values()) {
+					if (sb.length() > 0) {
+						sb.append(',');
+					}
+					sb.append(v instanceof String ? "\"" + v + "\"" : v);
+				}
+				out.println(sb);
+			}
+		}
+		System.out.println("Results written to " + file);
+	}
+
+	void writeJson(String file) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+			out.println("[");
+			for (int i = 0; i < results.size(); i++) {
+				StringBuilder sb = new StringBuilder("  {");
+				for (Map.Entry<String, Object> e : results.get(i).entrySet()) {
+					if (sb.length() > 3) {
+						sb.append(", ");
+					}
+					Object v = e.getValue();
+					sb.append('"').append(e.getKey()).append("\": ").append(v instanceof String ? "\"" + v + "\"" : v);
+				}
+				out.println(sb.append(i < results.size() - 1 ? "}," : "}"));
+			}
+			out.println("]");
+		}
+		System.out.println("Results written to " + file);
+	}
+
+    void stop() {
+		curClient.close();
+		exlog.stop();
     }
 
     class MyRunnable implements Runnable {
-		long totalTime;
-		KeyValueService.Client client;																// instance of KeyValueService.Client, which represents the client for interacting with the key-value service using the Thrift framework
-
-		// constructor method that initializes the runnabl
-		MyRunnable() throws TException {
-			client = getThriftClient();
+		// all threads share the router's KeyValueClients (one per group: cached primary, pooled connections, retries)
+		MyRunnable() {
 		}
 		
-		long getTotalTime() { return totalTime; }
-		
 		public void run() {
 			Random rand = new Random();																// used for generating random values
-			totalTime = 0;
 			long tid = Thread.currentThread().getId();
 			int numOps = 0;
+			// open loop: this thread's share of the rate, ops are due every `interval` ns whether or not the last one is done
+			long interval = (rate > 0) ? (long)(1e9 * numThreads / rate) : 0;
+			long due = System.nanoTime() + (interval > 0 ? (long)(rand.nextDouble() * interval) : 0);	// stagger the threads
 			try {
 				while (!done) {																		// execute the loop until the client asserts DONE
-					long startTime = System.nanoTime();
-					//log.info("Starting operation at : " + startTime);
-					if (rand.nextBoolean()) {														// invoke a PUT operation on the Key-Value Service
-						while (!done) {
-							try {
-							String key = "key-" + (Math.abs(rand.nextLong()) % keySpaceSize);
-							String value = "value-" + Math.abs(rand.nextLong());
-							exlog.logWriteInvocation(tid, key, value);
-							client.put(key, value);													// RPC CALL
-							exlog.logWriteResponse(tid, key);
-							numOps++;
-							break;
-							} catch (Exception e) {
-							log.error("Exception during put");
-							Thread.sleep(100);
-							client = getThriftClient();
-							}
-						}
-					} else {																		// invoke a GET operation on the Key-Value Service
-						while (!done) {
-							try {
-							String key = "key-" + (Math.abs(rand.nextLong()) % keySpaceSize);
-							exlog.logReadInvocation(tid, key);
-							String resp = client.get(key);											// RPC CALL
-							exlog.logReadResponse(tid, key, resp);
-							numOps++;
-							break;
-							} catch (Exception e) {
-							log.error("Exception during get");
-							Thread.sleep(100);
-							client = getThriftClient();
-							}
+					long startTime;
+					if (interval > 0) {
+						long wait;
+						while ((wait = due - System.nanoTime()) > 0 && !done) {
+							java.util.concurrent.locks.LockSupport.parkNanos(wait);
 						}
+						startTime = due;															// latency counts from when the op was due, not when we got to it
+						due += interval;
+					} else {
+						startTime = System.nanoTime();
+					}
+					boolean isRead = workload.nextIsRead(rand);
+					int n = (batchSize > 1) ? runBatch(rand, tid, isRead) : runOne(rand, tid, isRead);
+					if (n > 0 && measuring) {
+						(isRead ? readLatency : writeLatency).record((System.nanoTime() - startTime) / 1000);
+						numOps += n;
 					}
-					long diffTime = System.nanoTime() - startTime;
-					totalTime += diffTime / 1000;
 				}
 			} catch (Exception x) {
 				x.printStackTrace();
 			}	
 			globalNumOps.addAndGet(numOps);
 		}
+
+		// one get or put, returns 1 when done (0 if we ran out of time)
+		int runOne(Random rand, long tid, boolean isRead) throws Exception {
+			String key = workload.nextKey(rand);
+			int g = router.groupFor(key);
+			if (!isRead) {																			// invoke a PUT operation on the Key-Value Service
+				String value = workload.nextValue(rand);
+				while (!done) {
+					try {
+						exlog.logWriteInvocation(tid, key, value);
+						router.client(g).put(key, value);											// RPC CALL
+						exlog.logWriteResponse(tid, key);
+						countGroup(g, 1);
+						return 1;
+					} catch (Exception e) {
+						log.error("Exception during put", e);										// KeyValueClient already retried for a while
+					}
+				}
+			} else {																				// invoke a GET operation on the Key-Value Service
+				while (!done) {
+					try {
+						exlog.logReadInvocation(tid, key);
+						String resp = router.client(g).get(key);									// RPC CALL
+						exlog.logReadResponse(tid, key, resp);
+						countGroup(g, 1);
+						return 1;
+					} catch (Exception e) {
+						log.error("Exception during get", e);
+					}
+				}
+			}
+			return 0;
+		}
+
+		void countGroup(int g, int n) {
+			if (measuring) {
+				groupNumOps.addAndGet(g, n);
+			}
+		}
+
+		// one multiPut or multiGet of batchSize random keys, returns the number of keys done (0 if we ran out of time)
+		// the batch is split by group, every group gets one RPC with its share of the keys
+		int runBatch(Random rand, long tid, boolean isRead) throws Exception {
+			boolean isPut = !isRead;
+			Map<String, String> entries = new HashMap<>();
+			List<String> keys = new ArrayList<>(batchSize);
+			if (isPut) {
+				for (int i = 0; i < batchSize; i++) {											// a skewed key distribution may draw the same key twice, the last value wins
+					entries.put(workload.nextKey(rand), workload.nextValue(rand));
+				}
+				keys.addAll(entries.keySet());
+			} else {
+				for (int i = 0; i < batchSize; i++) {
+					keys.add(workload.nextKey(rand));
+				}
+			}
+
+			int numKeys = 0;
+			for (Map.Entry<Integer, List<String>> part : router.partition(keys).entrySet()) {
+				int g = part.getKey();
+				List<String> groupKeys = part.getValue();
+				while (!done) {
+					try {
+						if (isPut) {
+							Map<String, String> groupEntries = new HashMap<>();
+							for (String key : groupKeys) {
+								groupEntries.put(key, entries.get(key));
+								exlog.logWriteInvocation(tid, key, entries.get(key));
+							}
+							router.client(g).multiPut(groupEntries);						// RPC CALL
+							for (String key : groupKeys) {
+								exlog.logWriteResponse(tid, key);
+							}
+						} else {
+							for (String key : groupKeys) {
+								exlog.logReadInvocation(tid, key);
+							}
+							List<String> resp = router.client(g).multiGet(groupKeys);			// RPC CALL
+							for (int i = 0; i < groupKeys.size(); i++) {
+								exlog.logReadResponse(tid, groupKeys.get(i), resp.get(i));
+							}
+						}
+						countGroup(g, groupKeys.size());
+						numKeys += groupKeys.size();
+						break;
+					} catch (Exception e) {
+						log.error("Exception during " + (isPut ? "multiPut" : "multiGet") + " on " + router.groupName(g), e);
+					}
+				}
+			}
+			return numKeys;
+		}
     }
 }
@@ -0,0 +1,132 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Admission control for the client RPCs of a storage node (--admission=aimd, see KeyValueHandler.configureAdmission)
+ *
+ * ... without it an overloaded node takes every request it is sent: they all run at once, fight over the CPU, the map
+ * and the replication frames, and every one of them gets slow until clients time out and retry, which adds even more
+ * load. Here each kind of request (reads, writes, scans) gets a Limit on how many may run at the same time; a request
+ * over the limit is turned away right away with Overloaded, which tells the client when to try again
+ * (KeyValueClient waits that long, with jitter, instead of its own backoff).
+ *
+ * The limit adapts, AIMD like TCP congestion control: a request that took longer than the target latency cuts the
+ * limit by 10% (at most once per typical request time, so one slow burst doesn't cut it many times over), and every
+ * `limit` requests that ran within the target while the limit was actually in use raise it by one. So the limit
+ * settles at about the concurrency the node can serve within the target, the requests it admits keep their latency,
+ * and the extra load gets a cheap rejection instead of a slow answer.
+ *
+ * Acquire and release are a CAS and a few volatile reads and writes, no locks. Two threads adjusting the same limit at
+ * the same time may lose one of the adjustments, the next request makes it again.
+ */
+public class AdmissionController {
+    static final double BACKOFF = 0.9;              // multiplicative decrease
+    static final int MIN_LIMIT = 1;
+    static final int MAX_RETRY_AFTER_MS = 1000;
+
+    private long targetNanos;
+    private int initialLimit;
+    private int maxLimit;
+    private List<Limit> limits = new ArrayList<Limit>();
+
+    // targetMs = latency a request should stay under, initialLimit / maxLimit = concurrency to start with / never exceed
+    public AdmissionController(long targetMs, int initialLimit, int maxLimit) {
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMs);
+        this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+        this.initialLimit = Math.max(MIN_LIMIT, Math.min(initialLimit, this.maxLimit));
+    }
+
+    public synchronized Limit limit(String name) {
+        Limit l = new Limit(name);
+        limits.add(l);
+        return l;
+    }
+
+    // prefix.<name>.limit, inFlight, admitted, rejected, decreases, latencyUs, and prefix.targetUs
+    public synchronized void addStats(Map<String, Long> stats, String prefix) {
+        stats.put(prefix + ".targetUs", TimeUnit.NANOSECONDS.toMicros(targetNanos));
+        for (Limit l : limits) {
+            l.addStats(stats, prefix + "." + l.name);
+        }
+    }
+
+    public class Limit {
+        final String name;
+        private AtomicInteger inFlight = new AtomicInteger();
+        private volatile int limit = initialLimit;
+        private AtomicInteger withinTarget = new AtomicInteger();  // requests under the target since the limit last changed
+        private volatile long lastDecrease;         // System.nanoTime()
+        private volatile long latencyNanos;         // moving average, for the retry hint
+
+        private LongAdder admitted = new LongAdder();
+        private LongAdder rejected = new LongAdder();
+        private LongAdder decreases = new LongAdder();
+
+        Limit(String name) {
+            this.name = name;
+        }
+
+        // take a slot, false if `limit` requests are running already; a true must be followed by release
+        public boolean tryAcquire() {
+            while (true) {
+                int n = inFlight.get();
+                if (n >= limit) {
+                    rejected.increment();
+                    return false;
+                }
+                if (inFlight.compareAndSet(n, n + 1)) {
+                    admitted.increment();
+                    return true;
+                }
+            }
+        }
+
+        // the request admitted at startNanos is done (whether it worked or not)
+        public void release(long startNanos) {
+            int n = inFlight.getAndDecrement();
+            long now = System.nanoTime();
+            long took = now - startNanos;
+            long avg = latencyNanos;
+            latencyNanos = (avg == 0) ? took : avg + (took - avg) / 8;
+
+            int l = limit;
+            if (took > targetNanos) {
+                if (now - lastDecrease > Math.max(avg, targetNanos)) {
+                    lastDecrease = now;
+                    withinTarget.set(0);
+                    limit = Math.max(MIN_LIMIT, Math.min(l - 1, (int) (l * BACKOFF)));
+                    decreases.increment();
+                }
+            } else if (n * 2 >= l && l < maxLimit && withinTarget.incrementAndGet() >= l) {
+                // only grow while the limit is what holds us back, an idle node would grow it without bound
+                withinTarget.set(0);
+                limit = l + 1;
+            }
+        }
+
+        // how long a rejected client should wait: about two requests' time here, a slot is likely free by then
+        public int retryAfterMs() {
+            long ms = TimeUnit.NANOSECONDS.toMillis(2 * latencyNanos) + 1;
+            return (int) Math.min(MAX_RETRY_AFTER_MS, ms);
+        }
+
+        public Overloaded overloaded() {
+            return new Overloaded("Overloaded: " + limit + " " + name + " requests in flight", retryAfterMs());
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        void addStats(Map<String, Long> stats, String prefix) {
+            stats.put(prefix + ".limit", (long) limit);
+            stats.put(prefix + ".inFlight", (long) inFlight.get());
+            stats.put(prefix + ".admitted", admitted.sum());
+            stats.put(prefix + ".rejected", rejected.sum());
+            stats.put(prefix + ".decreases", decreases.sum());
+            stats.put(prefix + ".latencyUs", TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+        }
+    }
+}
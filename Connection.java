@@ -3,17 +3,74 @@ import org.apache.thrift.async.*;
 import org.apache.thrift.transport.*;
 import org.apache.thrift.protocol.*;
 
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.concurrent.Semaphore;
 
 public class Connection {
+    TSocket socket;
     TTransport transport;
     KeyValueService.Client client;
+    String destination;                     // "host:port"
+    Manager.Pool pool;                      // the Manager pool that handed it out, it goes back there and nowhere else
+    volatile long lastUsed;                 // System.nanoTime() of the last time it went back into the pool
 
     public Connection(String host, int port) throws org.apache.thrift.TException {
-        TSocket sock = new TSocket(host, port);
-        this.transport = new TFramedTransport(sock);
+        this(host, port, 0);
+    }
+
+    // timeoutMs = socket connect/read timeout, 0 means wait forever (the TSocket default)
+    public Connection(String host, int port, int timeoutMs) throws org.apache.thrift.TException {
+        this.socket = new TSocket(host, port, timeoutMs);
+        this.transport = new TFramedTransport(socket);
         TProtocol protocol = new TBinaryProtocol(transport);
         transport.open();
         this.client = new KeyValueService.Client(protocol);
+        this.destination = host + ":" + port;
+        this.lastUsed = System.nanoTime();
+    }
+
+    // change the read timeout of an open connection, e.g. for one long call on a connection that is normally kept tight
+    public void setTimeout(int timeoutMs) {
+        socket.setTimeout(timeoutMs);
+    }
+
+    // only our end of the socket: a peer that closed or went away still looks open here
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    // isOpen plus a look at the other end, for an idle connection only (a borrowed one may be in the middle of a call)
+    // ... the server never sends anything unasked, so a 1 ms read tells: timeout = alive, EOF = the peer closed it,
+    // a byte = leftovers of an earlier call, error = reset; all but the first are dead. A peer host that vanished
+    // without closing isn't seen here, the next RPC runs into the socket timeout for that.
+    public boolean isAlive() {
+        if (!transport.isOpen()) {
+            return false;
+        }
+        Socket s = socket.getSocket();
+        try {
+            int timeout = s.getSoTimeout();
+            s.setSoTimeout(1);
+            try {
+                s.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                s.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        try {
+            transport.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
     }
 }
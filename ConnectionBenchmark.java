@@ -0,0 +1,137 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.thrift.server.TServer;
+
+/*
+ * Thread per connection on platform vs virtual threads: throughput and memory per client session
+ *
+ * starts a KeyValueHandler (primary, no backup) behind the same server StorageNode builds (same flags: --server,
+ * --workers, --virtual-threads) in this JVM, then opens --connections sessions, each on its own thread (virtual with
+ * --virtual-threads, like the server's) with its own connection, doing a get or a put and then sleeping --think-ms,
+ * so most sessions are idle most of the time like real clients
+ *
+ *   java ConnectionBenchmark --connections=2000 --workers=2000         the current pool, one platform thread each side
+ *   java ConnectionBenchmark --connections=20000 --virtual-threads     (Java 21)
+ *   java ConnectionBenchmark --connections=2000                        default pool of 64: only 64 sessions get served
+ *
+ * reports ops/s over --seconds, and heap (after GC), resident memory (Linux) and platform threads before and after the
+ * sessions connected, per session (client and server side together). Raise `ulimit -n` for many connections.
+ */
+public class ConnectionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new Options(args);
+        int connections = opts.getInt("connections", 1000);
+        int seconds = opts.getInt("seconds", 10);
+        long thinkMs = opts.getLong("think-ms", 10);
+        boolean virtual = opts.getBoolean("virtual-threads");
+        String mode = (virtual ? "virtual" : "platform") + "/" + opts.getString("server", "threadpool");
+
+        KeyValueHandler handler = new KeyValueHandler("localhost", 0, null, "/bench");
+        handler.setState(State.PRIMARY);
+        handler.setIsAlone(true);
+        for (int i = 0; i < 1000; i++) {
+            handler.put("key-" + i, "value-" + i);
+        }
+        int port;
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        StorageNode.log = Logger.getLogger(StorageNode.class.getName());
+        TServer server = StorageNode.buildServer(opts, new KeyValueService.Processor<KeyValueService.Iface>(handler), port);
+        Thread serving = new Thread(server::serve, "server");
+        serving.setDaemon(true);
+        serving.start();
+        while (!server.isServing()) {
+            Thread.sleep(10);
+        }
+
+        long heapBefore = StoreBenchmark.usedHeapAfterGc();
+        long rssBefore = residentBytes();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        ThreadFactory threads = virtual ? VirtualThreads.factory("session-") : Thread::new;
+        CountDownLatch connected = new CountDownLatch(connections);
+        AtomicLong ops = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        for (int i = 0; i < connections; i++) {
+            final int id = i;
+            Thread t = threads.newThread(() -> session(id, port, thinkMs, connected, stop, ops, failed));
+            t.setDaemon(true);
+            t.start();
+        }
+        connected.await();
+        System.out.println(mode + ": " + connections + " sessions connected (" + failed.get() + " failed)");
+
+        long heapAfter = StoreBenchmark.usedHeapAfterGc();
+        long rssAfter = residentBytes();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        long before = ops.get();
+        Thread.sleep(seconds * 1000L);
+        long done = ops.get() - before;
+        stop.set(true);
+
+        int live = Math.max(1, connections - (int) failed.get());
+        System.out.println(mode + ": " + done / seconds + " ops/s with " + live + " sessions, think time " + thinkMs + " ms");
+        System.out.println(mode + ": heap " + (heapAfter - heapBefore) / live + " B/session, resident "
+            + ((rssBefore < 0) ? "n/a" : (rssAfter - rssBefore) / live + " B/session") + ", platform threads "
+            + threadsBefore + " -> " + threadsAfter);
+        server.stop();
+    }
+
+    static void session(int id, int port, long thinkMs, CountDownLatch connected, AtomicBoolean stop, AtomicLong ops, AtomicLong failed) {
+        Connection c;
+        try {
+            c = new Connection("localhost", port, 30000);
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            connected.countDown();
+            return;
+        }
+        connected.countDown();
+        Random rand = new Random(id);
+        try {
+            while (!stop.get()) {
+                String key = "key-" + rand.nextInt(1000);
+                if (rand.nextInt(10) == 0) {
+                    c.client.put(key, "value-" + rand.nextInt());
+                } else {
+                    c.client.get(key);
+                }
+                ops.incrementAndGet();
+                if (thinkMs > 0) {
+                    Thread.sleep(thinkMs);
+                }
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+        } finally {
+            c.close();
+        }
+    }
+
+    // VmRSS of this process, -1 where there is no /proc
+    static long residentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // not Linux
+        }
+        return -1;
+    }
+}
@@ -24,7 +24,7 @@ public class CreateZNode {
 		log = Logger.getLogger(StorageNode.class.getName());
 
 		if (args.length != 2) {														// checks if the number of command-line arguments is not equal to 2
-			System.err.println("Usage: java CreateZKNode zkconnectstring zknode");	// zknode will be /$USER (?)
+			System.err.println("Usage: java CreateZKNode zkconnectstring zknode[,zknode...]");	// zknode will be /$USER (?)
 			System.exit(-1);
 		}
 
@@ -44,7 +44,9 @@ public class CreateZNode {
 			}
 		});
 
-		ZKPaths.mkdirs(curClient.getZookeeperClient().getZooKeeper(), args[1]);		// responsible for creating a znode (ZooKeeper node) in the ZooKeeper cluster using the Curator framework.
+		for (String zkNode : args[1].split(",")) {									// several replica groups can be created at once: /a,/b,/c
+			ZKPaths.mkdirs(curClient.getZookeeperClient().getZooKeeper(), zkNode);	// responsible for creating a znode (ZooKeeper node) in the ZooKeeper cluster using the Curator framework.
+		}
 		
 		curClient.close();															// gracefully close the ZooKeeper client connection, and release the allocated resources
     }
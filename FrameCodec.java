@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+
+/*
+ * Compression of replication frames and snapshot chunks between two replicas (forwardCompressed, setMapChunkCompressed)
+ *
+ * ... a frame (keys, values, sequences) is packed into one byte array and deflated at a fast level. Optionally both
+ * sides share a preset dictionary trained on the data (train()), which is what makes small frames of repetitive JSON
+ * compress well: deflate can refer back into the dictionary from the very first byte of every frame.
+ *
+ * The sender proposes the codec and dictionary with negotiateCompression when it takes on a backup; a backup that
+ * doesn't know the RPC (or says no) just keeps getting plain forwardBatch / setMapChunk.
+ *
+ * Wire format: [codec: 1 byte][dictId: 4][rawLength: 4][payload], payload = deflated (or raw, for tiny frames)
+ *   count: 4, then per entry: sequence: 4, key length: 4, key (UTF-8), value length: 4, value (UTF-8)
+ *
+ * Deflaters and inflaters are per thread (replication senders and snapshot streams encode in parallel).
+ */
+public class FrameCodec {
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    static final int MIN_COMPRESS = 256;                    // below this the header costs more than deflate saves
+    static final int MAX_DICTIONARY = 32 * 1024;            // deflate only looks back 32 KB
+
+    private int dictId;
+    private byte[] dictionary;
+    private ThreadLocal<Deflater> deflaters;
+    private ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    // what it did, see addStats
+    private LongAdder frames = new LongAdder();
+    private LongAdder rawBytes = new LongAdder();
+    private LongAdder wireBytes = new LongAdder();
+    private LongAdder nanos = new LongAdder();
+
+    // dictionary = null or empty for plain deflate, dictId must change whenever the dictionary does
+    public FrameCodec(int level, int dictId, byte[] dictionary) {
+        this.dictId = dictId;
+        this.dictionary = (dictionary == null || dictionary.length == 0) ? null : dictionary;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    public int getDictId() {
+        return dictId;
+    }
+
+    public byte[] getDictionary() {
+        return (dictionary == null) ? new byte[0] : dictionary;
+    }
+
+    /*
+     * a dictionary for frames of this map: evenly spaced sample entries (keys and values, the way they sit in a frame),
+     * as many as fit in maxBytes; deflate favours the end of the dictionary, so it doesn't matter much which ones win
+     */
+    public static byte[] train(StorageEngine map, int maxBytes) {
+        int limit = Math.min(maxBytes, MAX_DICTIONARY);
+        int size = map.size();
+        if (size == 0 || limit <= 0) {
+            return new byte[0];
+        }
+        int step = Math.max(1, size / 1024);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(limit);
+        int[] i = { 0 };
+        map.forEach((key, value, seq) -> {
+            if (i[0]++ % step != 0) {
+                return true;
+            }
+            byte[] sample = (key + value).getBytes(StandardCharsets.UTF_8);
+            int n = Math.min(sample.length, Math.min(1024, limit - out.size()));
+            out.write(sample, 0, n);
+            return out.size() < limit;
+        });
+        return out.toByteArray();
+    }
+
+    public ByteBuffer encode(List<String> keys, List<String> values, List<Integer> sequences) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream raw = new ByteArrayOutputStream(64 + keys.size() * 32);
+        DataOutputStream data = new DataOutputStream(raw);
+        try {
+            data.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+                byte[] value = values.get(i).getBytes(StandardCharsets.UTF_8);
+                data.writeInt(sequences.get(i));
+                data.writeInt(key.length);
+                data.write(key);
+                data.writeInt(value.length);
+                data.write(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);                 // can't happen, it's all in memory
+        }
+        byte[] in = raw.toByteArray();
+
+        byte[] out;
+        int length;
+        if (in.length < MIN_COMPRESS) {
+            out = new byte[9 + in.length];
+            out[0] = RAW;
+            System.arraycopy(in, 0, out, 9, in.length);
+            length = out.length;
+        } else {
+            Deflater deflater = deflaters.get();
+            deflater.reset();
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(in);
+            deflater.finish();
+            out = new byte[9 + in.length / 2 + 64];
+            out[0] = DEFLATE;
+            length = 9;
+            while (!deflater.finished()) {
+                if (length == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                length += deflater.deflate(out, length, out.length - length);
+            }
+        }
+        ByteBuffer header = ByteBuffer.wrap(out);
+        header.putInt(1, dictId);
+        header.putInt(5, in.length);
+
+        frames.increment();
+        rawBytes.add(in.length);
+        wireBytes.add(length);
+        nanos.add(System.nanoTime() - start);
+        return ByteBuffer.wrap(out, 0, length);
+    }
+
+    // appends the frame's entries to keys, values and sequences
+    public void decode(ByteBuffer frame, List<String> keys, List<String> values, List<Integer> sequences) throws IOException {
+        long start = System.nanoTime();
+        byte[] buf = new byte[frame.remaining()];
+        frame.duplicate().get(buf);
+        if (buf.length < 9) {
+            throw new IOException("Frame too short: " + buf.length + " bytes");
+        }
+        ByteBuffer header = ByteBuffer.wrap(buf);
+        byte codec = header.get(0);
+        int frameDictId = header.getInt(1);
+        int rawLength = header.getInt(5);
+
+        byte[] raw;
+        if (codec == RAW) {
+            raw = Arrays.copyOfRange(buf, 9, buf.length);
+        } else if (codec == DEFLATE) {
+            raw = new byte[rawLength];
+            Inflater inflater = inflaters.get();
+            inflater.reset();
+            inflater.setInput(buf, 9, buf.length - 9);
+            try {
+                int n = 0;
+                while (n < rawLength) {
+                    int got = inflater.inflate(raw, n, rawLength - n);
+                    if (got == 0 && inflater.needsDictionary()) {
+                        if (dictionary == null || frameDictId != dictId) {
+                            throw new IOException("Frame needs dictionary " + frameDictId + ", we have " + dictId);
+                        }
+                        inflater.setDictionary(dictionary);
+                    } else if (got == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Frame truncated at " + n + " of " + rawLength + " bytes");
+                    }
+                    n += got;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt frame", e);
+            }
+        } else {
+            throw new IOException("Unknown codec " + codec);
+        }
+
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(raw));
+        int count = data.readInt();
+        for (int i = 0; i < count; i++) {
+            sequences.add(data.readInt());
+            keys.add(readString(data));
+            values.add(readString(data));
+        }
+        frames.increment();
+        rawBytes.add(raw.length);
+        wireBytes.add(buf.length);
+        nanos.add(System.nanoTime() - start);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        byte[] b = new byte[data.readInt()];
+        data.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // prefix.frames, rawBytes, wireBytes, ratioPct (wire / raw), MBps (raw bytes per second of codec time)
+    public void addStats(Map<String, Long> stats, String prefix) {
+        long raw = rawBytes.sum();
+        long wire = wireBytes.sum();
+        long ns = nanos.sum();
+        stats.put(prefix + ".frames", frames.sum());
+        stats.put(prefix + ".rawBytes", raw);
+        stats.put(prefix + ".wireBytes", wire);
+        stats.put(prefix + ".ratioPct", (raw == 0) ? 100 : wire * 100 / raw);
+        stats.put(prefix + ".MBps", (ns == 0) ? 0 : raw * 1000 / ns);
+        stats.put(prefix + ".dictBytes", (long) getDictionary().length);
+    }
+}
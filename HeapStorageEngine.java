@@ -0,0 +1,121 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/*
+ * The original storage: one ConcurrentHashMap, now holding the value and its sequence number in a single entry
+ */
+public class HeapStorageEngine implements StorageEngine {
+    private ConcurrentHashMap<String, Versioned> map = new ConcurrentHashMap<String, Versioned>();
+    private Snapshot.Registry snapshots = new Snapshot.Registry(this);
+
+    static final class Versioned {
+        final String value;
+        final int seq;
+
+        Versioned(String value, int seq) {
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+
+    // merge functions for putIfNewer, they don't capture anything so they are not allocated per call
+    private static final BiFunction<Versioned, Versioned, Versioned> NEWER =
+        (cur, next) -> (next.seq > cur.seq) ? next : cur;
+    private static final BiFunction<Versioned, Versioned, Versioned> NEWER_OR_SAME =
+        (cur, next) -> (next.seq >= cur.seq) ? next : cur;
+
+    public String get(String key) {
+        Versioned v = map.get(key);
+        return (v == null) ? null : v.value;
+    }
+
+    public String get(String key, int[] seq) {
+        Versioned v = map.get(key);
+        if (v == null) {
+            return null;
+        }
+        seq[0] = v.seq;
+        return v.value;
+    }
+
+    public int put(String key, String value, IntSupplier nextSeq) {
+        return map.compute(key, (k, cur) -> {
+            Versioned next = new Versioned(value, nextSeq.getAsInt());
+            if (cur != null) {
+                snapshots.overwriting(k, cur.value, cur.seq, next.seq);
+            }
+            return next;
+        }).seq;
+    }
+
+    public int update(String key, UnaryOperator<String> update, IntSupplier nextSeq) {
+        int[] seq = { 0 };
+        map.compute(key, (k, cur) -> {
+            String next = update.apply((cur == null) ? null : cur.value);
+            if (next == null) {
+                return cur;
+            }
+            seq[0] = nextSeq.getAsInt();
+            if (cur != null) {
+                snapshots.overwriting(k, cur.value, cur.seq, seq[0]);
+            }
+            return new Versioned(next, seq[0]);
+        });
+        return seq[0];
+    }
+
+    /*
+     * with no snapshot open this is a merge; checking outside the key lock is fine: the caller raised the node's last
+     * sequence to seq before calling us (applyForwarded, setMapChunk), so a snapshot we don't see yet reads a last
+     * sequence >= seq and doesn't need the version we replace
+     */
+    public boolean putIfNewer(String key, String value, int seq, boolean strict) {
+        Versioned next = new Versioned(value, seq);
+        if (snapshots.isEmpty()) {
+            return map.merge(key, next, strict ? NEWER : NEWER_OR_SAME) == next;
+        }
+        return map.compute(key, (k, cur) -> {
+            if (cur == null) {
+                return next;
+            }
+            if (strict ? seq <= cur.seq : seq < cur.seq) {
+                return cur;
+            }
+            snapshots.overwriting(k, cur.value, cur.seq, seq);
+            return next;
+        }) == next;
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public void clear() {
+        snapshots.invalidate();
+        map.clear();
+    }
+
+    public Snapshot snapshot(IntSupplier lastSeq) {
+        return snapshots.open(lastSeq);
+    }
+
+    public void forEach(EntryVisitor visitor) {
+        for (Map.Entry<String, Versioned> e : map.entrySet()) {
+            Versioned v = e.getValue();
+            if (!visitor.visit(e.getKey(), v.value, v.seq)) {
+                return;
+            }
+        }
+    }
+
+    public long offHeapBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,531 @@
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.thrift.*;
+import org.apache.thrift.transport.*;
+
+import org.apache.zookeeper.*;
+import org.apache.curator.framework.*;
+import org.apache.curator.framework.api.*;
+
+import org.apache.log4j.*;
+
+/*
+ * Client library for one primary/backup group (one zkNode)
+ *
+ * ... everything a program needs to talk to the key-value service, so it doesn't have to hand-roll sockets and retries:
+ *  - the primary's address is cached and kept up to date by a watch on zkNode, a call never goes to ZooKeeper
+ *  - connections are pooled per node (Manager) and pre-opened as soon as a new primary shows up
+ *  - a failed call is retried with exponential backoff and full jitter (base retryBaseMs, capped at retryMaxMs, for at
+ *    most retryBudgetMs in total); when the watch reports a new primary, a waiting retry wakes up and goes right away
+ *  - getAsync / putAsync return a CompletableFuture, the calls run on the client's own thread pool
+ *  - with setReadFromBackup(true), every other read goes to the backup, which answers while it holds a read lease
+ *    (see ReadLease), otherwise the read falls back to the primary
+ *  - with setChainLength(rf) (servers running --replication=chain --rf=N), reads go to the tail of the chain, the
+ *    rf-th member or the last one if fewer are up; writes still go to the head (the primary)
+ *  - with setNearCache(n, maxStaleMs), get is answered from a local cache of up to n values when it can, a thread
+ *    long-polls the primary for the keys written meanwhile (see NearCache: reads are at most maxStaleMs stale, not
+ *    linearizable); not with chain replication, and multiGet doesn't use it
+ *  - scan / scanPrefix page through a key range in order (servers started with --index=ordered)
+ *  - compareAndSet, incrementBy and append run atomically on the primary (not retried once they may have been sent);
+ *    an incrementBy the primary can't apply (not a number, overflow) fails at once with InvalidOperation
+ *  - a node running admission control may answer Overloaded: the call is retried after the node's retryAfterMs hint
+ *    (plus jitter) instead of the backoff, within the same retry budget, non-idempotent calls too (nothing ran)
+ *
+ * Thread safe, meant to be shared by all threads of a program.
+ */
+public class KeyValueClient implements CuratorWatcher {
+    static Logger log = Logger.getLogger(KeyValueClient.class.getName());
+
+    private CuratorFramework curClient;
+    private String zkNode;
+    private Manager pool;
+    private int prewarm;
+    private long retryBaseMs = 5;
+    private long retryMaxMs = 1000;
+    private long retryBudgetMs = 15000;                 // a little more than a ZooKeeper session timeout, enough for a failover
+    private boolean readFromBackup;
+    private int chainLength;                            // 0 = primary/backup
+    private int timeoutMs;
+    private NearCache nearCache;                        // null = off
+    private volatile boolean closed;
+    private LongAdder overloaded = new LongAdder();    // calls a node turned away with Overloaded (and we retried)
+    private ExecutorService asyncExecutor;
+
+    private volatile InetSocketAddress primary;
+    private volatile InetSocketAddress backup;
+    private volatile InetSocketAddress tail;
+    private final ReentrantLock changeLock = new ReentrantLock();       // a lock, not a monitor: callers may be virtual threads
+    private final Condition primaryChanged = changeLock.newCondition();
+
+    public KeyValueClient(CuratorFramework curClient, String zkNode) {
+        this(curClient, zkNode, 16, 5000);
+    }
+
+    // poolSize = max connections per node, timeoutMs = socket timeout of a call
+    public KeyValueClient(CuratorFramework curClient, String zkNode, int poolSize, int timeoutMs) {
+        this.curClient = curClient;
+        this.zkNode = zkNode;
+        this.pool = new Manager(poolSize, timeoutMs, 60000, timeoutMs);
+        this.timeoutMs = timeoutMs;
+        this.prewarm = Math.min(4, poolSize);
+        this.asyncExecutor = Executors.newFixedThreadPool(poolSize, r -> {
+            Thread t = new Thread(r, "kv-client-async");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void setRetry(long baseMs, long maxMs, long budgetMs) {
+        this.retryBaseMs = baseMs;
+        this.retryMaxMs = maxMs;
+        this.retryBudgetMs = budgetMs;
+    }
+
+    public void setReadFromBackup(boolean b) {
+        this.readFromBackup = b;
+    }
+
+    public void setChainLength(int rf) {
+        this.chainLength = rf;
+    }
+
+    // maxEntries = 0 turns it off; call before start
+    public void setNearCache(int maxEntries, long maxStaleMs) {
+        this.nearCache = (maxEntries > 0) ? new NearCache(maxEntries, maxStaleMs) : null;
+    }
+
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    // how many times a node answered Overloaded (see AdmissionController), retried after its hint while the retry budget lasted
+    public long getOverloaded() {
+        return overloaded.sum();
+    }
+
+    // look up the primary and set the watch, blocks until the group has a primary
+    public void start() throws Exception {
+        while (!refresh()) {
+            Thread.sleep(100);
+        }
+        if (nearCache != null && chainLength > 0) {
+            log.warn("Near-cache is not supported with chain replication, turning it off for " + zkNode);
+            nearCache = null;
+        }
+        if (nearCache != null) {
+            Thread t = new Thread(this::pollInvalidations, "kv-near-cache");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public void close() {
+        closed = true;
+        asyncExecutor.shutdown();
+        pool.close();                                   // every destination, and its evictor thread
+    }
+
+    public String getZkNode() {
+        return zkNode;
+    }
+
+    public InetSocketAddress getPrimary() {
+        return primary;
+    }
+
+    public InetSocketAddress getBackup() {
+        return backup;
+    }
+
+    /*
+     * calls
+     */
+
+    public String get(String key) throws TException {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            String value = cache.get(key);
+            if (value != null) {
+                return value;
+            }
+            Object fill = cache.startFill(key);
+            VersionedValue v = call(c -> c.client.getVersioned(key), false);
+            cache.fill(key, fill, v.value, v.seq);
+            return v.value;
+        }
+        if (chainLength > 0) {
+            return call(c -> c.client.get(key), true);
+        }
+        if (readFromBackup && ThreadLocalRandom.current().nextBoolean()) {
+            String value = tryBackup(c -> c.client.get(key));
+            if (value != null) {
+                return value;
+            }
+        }
+        return call(c -> c.client.get(key), false);
+    }
+
+    public void put(String key, String value) throws TException {
+        call(c -> {
+            c.client.put(key, value);
+            return null;
+        }, false);
+        invalidateNearCache(key);                       // read your own writes without waiting for the poll
+    }
+
+    public List<String> multiGet(List<String> keys) throws TException {
+        if (chainLength > 0) {
+            return call(c -> c.client.multiGet(keys), true);
+        }
+        if (readFromBackup && ThreadLocalRandom.current().nextBoolean()) {
+            List<String> values = tryBackup(c -> c.client.multiGet(keys));
+            if (values != null) {
+                return values;
+            }
+        }
+        return call(c -> c.client.multiGet(keys), false);
+    }
+
+    // one page of a range scan (servers need --index=ordered), read from the same node as multiGet
+    public ScanResult scan(String startKey, String endKey, int limit, String cursor) throws TException {
+        if (chainLength > 0) {
+            return call(c -> c.client.scan(startKey, endKey, limit, cursor), true);
+        }
+        if (readFromBackup && ThreadLocalRandom.current().nextBoolean()) {
+            ScanResult page = tryBackup(c -> c.client.scan(startKey, endKey, limit, cursor));
+            if (page != null) {
+                return page;
+            }
+        }
+        return call(c -> c.client.scan(startKey, endKey, limit, cursor), false);
+    }
+
+    // every key with the prefix and its value in key order, fetched pageSize keys per RPC
+    public LinkedHashMap<String, String> scanPrefix(String prefix, int pageSize) throws TException {
+        LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>();
+        String end = prefixEnd(prefix);
+        String cursor = "";
+        do {
+            ScanResult page = scan(prefix, end, pageSize, cursor);
+            for (int i = 0; i < page.keys.size(); i++) {
+                ret.put(page.keys.get(i), page.values.get(i));
+            }
+            cursor = page.cursor;
+        } while (!cursor.isEmpty());
+        return ret;
+    }
+
+    // the first string after every string that starts with prefix ("" = no such string, scan to the end)
+    static String prefixEnd(String prefix) {
+        StringBuilder sb = new StringBuilder(prefix);
+        while (sb.length() > 0) {
+            char last = sb.charAt(sb.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                sb.setCharAt(sb.length() - 1, (char) (last + 1));
+                return sb.toString();
+            }
+            sb.setLength(sb.length() - 1);
+        }
+        return "";
+    }
+
+    public void multiPut(Map<String, String> entries) throws TException {
+        call(c -> {
+            c.client.multiPut(entries);
+            return null;
+        }, false);
+        for (String key : entries.keySet()) {
+            invalidateNearCache(key);
+        }
+    }
+
+    /*
+     * atomic read-modify-write on the primary, one round trip instead of get + put
+     * incrementBy and append are not idempotent: when the connection breaks after the call went out we can't tell
+     * whether the primary applied it, so these are only retried when they certainly didn't run (no connection, or the
+     * node said it isn't the primary), otherwise the TTransportException goes to the caller
+     */
+    public boolean compareAndSet(String key, String expected, String newValue) throws TException {
+        boolean swapped = call(c -> c.client.compareAndSet(key, expected, newValue), false, false);
+        invalidateNearCache(key);
+        return swapped;
+    }
+
+    public long incrementBy(String key, long delta) throws TException {
+        long value = call(c -> c.client.incrementBy(key, delta), false, false);
+        invalidateNearCache(key);
+        return value;
+    }
+
+    public int append(String key, String suffix) throws TException {
+        int length = call(c -> c.client.append(key, suffix), false, false);
+        invalidateNearCache(key);
+        return length;
+    }
+
+    private void invalidateNearCache(String key) {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate(key, Integer.MAX_VALUE);
+        }
+    }
+
+    // counters of the current primary (see KeyValueHandler.getStats)
+    public Map<String, Long> getPrimaryStats() throws TException {
+        return call(c -> c.client.getStats(), false);
+    }
+
+    public CompletableFuture<String> getAsync(String key) {
+        return async(() -> get(key));
+    }
+
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        return async(() -> {
+            put(key, value);
+            return null;
+        });
+    }
+
+    interface Call<T> {
+        T run(Connection c) throws TException;
+    }
+
+    interface Body<T> {
+        T run() throws TException;
+    }
+
+    private <T> CompletableFuture<T> async(Body<T> body) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+        asyncExecutor.execute(() -> {
+            try {
+                f.complete(body.run());
+            } catch (Throwable t) {
+                f.completeExceptionally(t);
+            }
+        });
+        return f;
+    }
+
+    // run a call on the primary (or the tail of the chain), retrying until it works or the retry budget is spent
+    private <T> T call(Call<T> call, boolean onTail) throws TException {
+        return call(call, onTail, true);
+    }
+
+    // idempotent = false: don't retry once the call may have reached the node (see incrementBy)
+    private <T> T call(Call<T> call, boolean onTail, boolean idempotent) throws TException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryBudgetMs);
+        long backoff = retryBaseMs;
+        while (true) {
+            InetSocketAddress p = onTail ? tail : primary;
+            Connection c = null;
+            try {
+                if (p == null) {
+                    throw new TTransportException(TTransportException.NOT_OPEN, "No primary for " + zkNode);
+                }
+                c = pool.popConnection(p.getHostString(), p.getPort());
+                T result = call.run(c);
+                pool.addConnection(c);
+                return result;
+            } catch (TException e) {
+                // a transport error leaves the socket in an unknown state; any other error (e.g. the node is not the
+                // primary (yet)) is a clean answer and the connection can be reused
+                if (c != null) {
+                    if (e instanceof TTransportException) {
+                        pool.discardConnection(c);
+                        if (!idempotent) {
+                            throw e;
+                        }
+                    } else {
+                        pool.addConnection(c);
+                    }
+                }
+                if (e instanceof InvalidOperation) {
+                    throw e;                            // the node's answer, it would say the same again
+                }
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    throw e;
+                }
+                if (e instanceof Overloaded) {
+                    // the node turned the call away without running it: come back when it says, spread over
+                    // [hint, 2 * hint) so the rejected clients don't all return at once
+                    long hint = Math.max(1, ((Overloaded) e).retryAfterMs);
+                    overloaded.increment();
+                    sleepMs(Math.min(TimeUnit.NANOSECONDS.toMillis(left), hint + ThreadLocalRandom.current().nextLong(hint)));
+                    continue;
+                }
+                long sleep = Math.min(TimeUnit.NANOSECONDS.toMillis(left), ThreadLocalRandom.current().nextLong(backoff + 1));
+                awaitChange(p, onTail, sleep);
+                backoff = Math.min(retryMaxMs, backoff * 2);
+            }
+        }
+    }
+
+    // one attempt on the backup, null if it can't answer right now
+    private <T> T tryBackup(Call<T> call) {
+        InetSocketAddress b = backup;
+        if (b == null) {
+            return null;
+        }
+        Connection c = null;
+        try {
+            c = pool.popConnection(b.getHostString(), b.getPort());
+            T result = call.run(c);
+            pool.addConnection(c);
+            return result;
+        } catch (TTransportException e) {
+            if (c != null) {
+                pool.discardConnection(c);
+            }
+        } catch (TException e) {
+            pool.addConnection(c);                      // no lease right now
+        }
+        return null;
+    }
+
+    private static void sleepMs(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // sleep up to ms, but return as soon as the primary (or the tail) is no longer `old`
+    private void awaitChange(InetSocketAddress old, boolean onTail, long ms) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms);
+        changeLock.lock();
+        try {
+            long left;
+            while (Objects.equals(onTail ? tail : primary, old) && (left = deadline - System.nanoTime()) > 0) {
+                primaryChanged.awaitNanos(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    /*
+     * near-cache invalidations: one long poll at a time on the primary, each one returns the keys written since the
+     * previous answer (or after half the staleness bound with none, which keeps the cache fresh while nothing changes)
+     */
+    private void pollInvalidations() {
+        NearCache cache = nearCache;
+        int waitMs = (int) Math.max(1, Math.min(cache.getMaxStaleMs() / 2, timeoutMs / 2));
+        long logId = -1;                                // asks for a reset first, the answer tells us where the log is
+        int afterSeq = 0;
+        while (!closed) {
+            InetSocketAddress p = primary;
+            Connection c = null;
+            long sent = System.nanoTime();
+            try {
+                c = pool.popConnection(p.getHostString(), p.getPort());
+                Invalidations inv = c.client.awaitInvalidations(logId, afterSeq, waitMs);
+                pool.addConnection(c);
+                if (inv.reset) {
+                    cache.clear();
+                } else {
+                    for (int i = 0; i < inv.keys.size(); i++) {
+                        cache.invalidate(inv.keys.get(i), inv.sequences.get(i));
+                    }
+                }
+                logId = inv.logId;
+                afterSeq = inv.seq;
+                // fresh only once caught up; a cut off answer leaves writes before `sent` out, the next poll gets them
+                // right away
+                if (!inv.more) {
+                    cache.markFresh(sent);
+                }
+            } catch (TException e) {
+                // the cache goes stale by itself, reads skip it until a primary answers again
+                if (c != null) {
+                    if (e instanceof TTransportException) {
+                        pool.discardConnection(c);
+                    } else {
+                        pool.addConnection(c);
+                    }
+                }
+                awaitChange(p, false, 100);
+            }
+        }
+    }
+
+    /*
+     * membership
+     */
+
+    // returns false if the group has no primary right now
+    private boolean refresh() throws Exception {
+        List<String> children = curClient.getChildren().usingWatcher(this).forPath(zkNode);
+        if (children.size() == 0) {
+            log.error("No primary found for " + zkNode);
+            return false;
+        }
+        Collections.sort(children);                     // lowest sequence number = primary
+        InetSocketAddress p = address(children.get(0));
+        InetSocketAddress b = (children.size() > 1) ? address(children.get(1)) : null;
+        InetSocketAddress t = (chainLength > 0) ? address(children.get(Math.min(chainLength, children.size()) - 1)) : null;
+        InetSocketAddress old = primary;
+        InetSocketAddress oldBackup = backup;
+        InetSocketAddress oldTail = tail;
+        backup = b;
+        if (oldBackup != null && !oldBackup.equals(b) && !oldBackup.equals(p) && !oldBackup.equals(t)) {
+            pool.closeDestination(key(oldBackup));
+        }
+        if (!Objects.equals(t, oldTail)) {
+            log.info("Found tail " + (t == null ? "none" : key(t)) + " for " + zkNode);
+            if (t != null) {
+                pool.prewarm(t.getHostString(), t.getPort(), prewarm);
+            }
+            tail = t;
+            signalChange();
+            if (oldTail != null && !oldTail.equals(p) && !oldTail.equals(b)) {
+                pool.closeDestination(key(oldTail));
+            }
+        }
+        if (!p.equals(old)) {
+            log.info("Found primary " + key(p) + " for " + zkNode);
+            pool.prewarm(p.getHostString(), p.getPort(), prewarm);
+            primary = p;
+            signalChange();
+            if (old != null && !old.equals(b) && !old.equals(t)) {
+                pool.closeDestination(key(old));
+            }
+        }
+        return true;
+    }
+
+    private void signalChange() {
+        changeLock.lock();
+        try {
+            primaryChanged.signalAll();
+        } finally {
+            changeLock.unlock();
+        }
+    }
+
+    private InetSocketAddress address(String child) throws Exception {
+        String[] hostPort = new String(curClient.getData().forPath(zkNode + "/" + child)).split(":");
+        return new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+    }
+
+    private static String key(InetSocketAddress a) {
+        return a.getHostString() + ":" + a.getPort();
+    }
+
+    synchronized public void process(WatchedEvent event) {
+        log.info("ZooKeeper event " + event + " for " + zkNode);
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.error("Unable to determine primary for " + zkNode);
+        }
+    }
+}
@@ -1,6 +1,8 @@
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
 
 import org.apache.thrift.*;
 import org.apache.thrift.server.*;
@@ -29,13 +31,58 @@ public class KeyValueHandler implements KeyValueService.Iface {
     private String host;
     private int port;
 
-    private ConcurrentHashMap<String, String> myMap;
-    private ConcurrentHashMap<String, Integer> requestSeqMap;
+    private StorageEngine myMap;                        // key -> (value, sequence), heap map or off-heap arenas, see StorageEngine
     private AtomicInteger requestSeq;
 
-    private boolean isAlone;
-    private Manager backupManager;
-    private State state;
+    private volatile boolean isAlone;
+    private Manager backupManager;                      // pooled connections to the backup
+    private volatile String backupHost;
+    private volatile int backupPort;
+    private ReplicationPipeline replication;
+    private ReplicationLog replicationLog;              // recent writes, so a rejoining backup only gets what it missed
+    private ReplicationLog.Watermark applied;           // backup side: every write up to this sequence has been applied here
+    private volatile long followingLogId;               // backup side: the primary log our sequences belong to
+    private WriteAheadLog wal;                          // null unless the node runs with --data-dir
+    private int transferStreams = 4;                    // parallel chunk streams used by completeDataTransfer
+    private int transferChunkBytes = 4 << 20;           // target size of one snapshot chunk
+    private ReadLease lease = new ReadLease(0);         // lets the backup answer get, off unless configureReadLease is called
+    private volatile String leasePrimary;               // backup side: "host:port" of the primary we ask for the lease
+    private volatile State state;
+    private int chainLength;                            // 0 = primary/backup, N = chain replication over N nodes (see configureChain)
+    private int compressionLevel = -1;                  // deflate level for frames to the backup, -1 = no compression
+    private int dictionaryBytes;                        // size of the trained dictionary, 0 = plain deflate
+    private volatile FrameCodec backupCodec;            // what the current backup accepted, null = plain frames
+    private ConcurrentHashMap<Integer, FrameCodec> inboundCodecs = new ConcurrentHashMap<Integer, FrameCodec>();
+    private volatile FrameCodec inboundCodec;           // the last one our primary negotiated
+
+    // instrumentation, see Metrics and getStats
+    private Metrics metrics = new Metrics();
+    private Metrics.Op getOp = metrics.op("get");
+    private Metrics.Op putOp = metrics.op("put");
+    private Metrics.Op multiGetOp = metrics.op("multiGet");
+    private Metrics.Op multiPutOp = metrics.op("multiPut");
+    private Metrics.Op forwardRequestOp = metrics.op("forwardRequest");
+    private Metrics.Op forwardBatchOp = metrics.op("forwardBatch");
+    private Metrics.Op setMapChunkOp = metrics.op("setMapChunk");
+    private Metrics.Op transferOp = metrics.op("transfer");      // outgoing snapshot chunks
+    private Metrics.Op invalidationsOp = metrics.op("awaitInvalidations");
+    private Metrics.Op scanOp = metrics.op("scan");
+    private Metrics.Op compareAndSetOp = metrics.op("compareAndSet");
+    private Metrics.Op incrementByOp = metrics.op("incrementBy");
+    private Metrics.Op appendOp = metrics.op("append");
+    private AdmissionController admission;              // null = every request is admitted, see configureAdmission
+    private AdmissionController.Limit readLimit;        // get, getVersioned, multiGet
+    private AdmissionController.Limit writeLimit;       // put, multiPut, compareAndSet, incrementBy, append
+    private AdmissionController.Limit scanLimit;
+    private volatile SnapshotTransfer lastTransfer;
+    private volatile long lastPrimaryContact;           // backup side: System.nanoTime() of the last write or lease from the primary
+    private volatile long failovers;
+    private volatile long lastFailoverMs;               // last contact with the old primary -> we took writes
+    private volatile long lastDetectMs;                 // last contact with the old primary -> ZooKeeper told us it was gone
+
+    static final int MAX_INVALIDATIONS = 8192;          // writes per awaitInvalidations answer
+    static final int MAX_SCAN_PAGE = 10000;             // keys per scan page, whatever the client asks for
+    static final long MAX_SCAN_BYTES = 4 << 20;         // and about this many bytes of keys and values
 
     // for debugging
     public boolean get_isAlone(){
@@ -43,97 +90,727 @@ public class KeyValueHandler implements KeyValueService.Iface {
     }
 
     public KeyValueHandler(String host, int port, CuratorFramework curClient, String zkNode) {
+        this(host, port, curClient, zkNode, new HeapStorageEngine(), new Manager(32, 1000, 60000, 0), 4, 512);
+    }
+
+    // framesInFlight = number of replication frames that can be on the wire to the backup at once
+    // maxFrameSize = max number of writes coalesced into one frame
+    public KeyValueHandler(String host, int port, CuratorFramework curClient, String zkNode, StorageEngine store, Manager backupManager, int framesInFlight, int maxFrameSize) {
+        this(host, port, curClient, zkNode, store, backupManager, framesInFlight, maxFrameSize, null);
+    }
+
+    // senderThreads = thread factory for the replication senders, null = platform threads (see VirtualThreads)
+    public KeyValueHandler(String host, int port, CuratorFramework curClient, String zkNode, StorageEngine store, Manager backupManager, int framesInFlight, int maxFrameSize, ThreadFactory senderThreads) {
         this.host = host;
         this.port = port;
         this.curClient = curClient;
         this.zkNode = zkNode;
-        this.myMap = new ConcurrentHashMap<String, String>();	
-        this.requestSeqMap = new ConcurrentHashMap<String, Integer>();
+        this.backupManager = backupManager;
+        this.myMap = store;
         this.requestSeq = new AtomicInteger(0);
+        this.replication = new ReplicationPipeline(this, framesInFlight, maxFrameSize, senderThreads);
+        this.replicationLog = new ReplicationLog(1 << 20);
+        this.applied = new ReplicationLog.Watermark();
     }
 
     /*  
     * GET and SET functions for private variables belonging to each znode
     */
     public void setState(State s) {
+        if (s == State.PRIMARY && this.state != State.PRIMARY) {
+            // new primary term -> new replication log, numbered from where the old primary left off
+            replicationLog.reset(requestSeq.get());
+            leasePrimary = null;
+            lease.drop();
+        }
         this.state = s;
     }
 
     public void setIsAlone(boolean b) {
-        this.isAlone = b;
+        if (b) {
+            lease.stop(() -> this.isAlone = true);      // see ReadLease: no more grants from the moment we're alone
+        } else {
+            this.isAlone = false;
+        }
     }
 
     public State getState() {
         return this.state;
     }
 
+    /*
+     * ServerWatcher made us the primary (we take writes from now on); if we were the backup this is a failover, and
+     * the old primary's last forward (or lease renewal) is the best guess we have of when it died
+     * eventNanos = when the membership change reached us
+     */
+    public void promoted(State from, long eventNanos) {
+        if (from != State.BACKUP || lastPrimaryContact == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        lastFailoverMs = (now - lastPrimaryContact) / 1000000;
+        lastDetectMs = Math.max(0, eventNanos - lastPrimaryContact) / 1000000;
+        failovers++;
+        System.out.println("HANDLER: failover, taking writes " + lastFailoverMs + " ms after the last contact with the old primary ("
+            + lastDetectMs + " ms until ZooKeeper reported it gone, " + (now - eventNanos) / 1000000 + " ms to take over)");
+        lastPrimaryContact = 0;
+    }
+
+    public void configureTransfer(int streams, int chunkBytes) {
+        this.transferStreams = streams;
+        this.transferChunkBytes = chunkBytes;
+    }
+
+    /*
+     * admission control (see AdmissionController): reads, writes and scans each get an adaptive limit on how many may
+     * run at once, a client request over it fails right away with Overloaded (and a retry hint) instead of queueing;
+     * replication, snapshot and lease traffic between the nodes is never turned away
+     */
+    public void configureAdmission(AdmissionController admission) {
+        this.readLimit = admission.limit("read");
+        this.writeLimit = admission.limit("write");
+        this.scanLimit = admission.limit("scan");
+        this.admission = admission;
+    }
+
+    private static void admit(AdmissionController.Limit limit) throws Overloaded {
+        if (limit != null && !limit.tryAcquire()) {
+            throw limit.overloaded();
+        }
+    }
+
+    private static void release(AdmissionController.Limit limit, long start) {
+        if (limit != null) {
+            limit.release(start);
+        }
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Metrics.Op getTransferOp() {
+        return transferOp;
+    }
+
+    /*
+     * every intervalMs: start a new latency interval and dump getStats to the log (0 = never, percentiles then cover
+     * everything since start)
+     */
+    public void configureStats(long intervalMs) {
+        if (intervalMs <= 0) {
+            return;
+        }
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "stats");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> {
+            try {
+                metrics.rotate();
+                Metrics.dump(getStats());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * chain replication over the first rf nodes in znode order (ServerWatcher works out who is where):
+     * writes enter at the head (PRIMARY) and every node forwards them to the next one (its "backup") before acking,
+     * so an ack means the tail has the write; only the tail (the node with nobody after it) answers reads
+     * a node doesn't drop its successor when forwarding fails, the writes wait until a new successor has joined
+     * or ServerWatcher says we are the tail now, otherwise the tail could miss an acknowledged write
+     */
+    public void configureChain(int rf) {
+        this.chainLength = rf;
+    }
+
+    public int getChainLength() {
+        return chainLength;
+    }
+
+    public boolean isChain() {
+        return chainLength > 0;
+    }
+
+    /*
+     * compress replication frames and snapshot chunks to the backup (see FrameCodec), level = deflate level 1..9 (-1 = off),
+     * dictionaryBytes > 0 trains a preset dictionary of that size on the map every time a backup joins
+     */
+    public void configureCompression(int level, int dictionaryBytes) {
+        this.compressionLevel = level;
+        this.dictionaryBytes = dictionaryBytes;
+    }
+
+    public FrameCodec getBackupCodec() {
+        return backupCodec;
+    }
+
+    public void configureReplicationLog(int capacity) {
+        this.replicationLog = new ReplicationLog(capacity);
+    }
+
+    /*
+     * read leases (see ReadLease): as a backup we ask the primary for the lease every leaseMs / 4 and answer get
+     * while we hold it; as a primary we grant it to our backup once it is caught up
+     */
+    public void configureReadLease(long leaseMs) {
+        this.lease = new ReadLease(leaseMs);
+        if (leaseMs <= 0) {
+            return;
+        }
+        Thread renewer = new Thread(() -> {
+            Connection connectionToPrimary = null;
+            while (true) {
+                try {
+                    Thread.sleep(Math.max(1, leaseMs / 4));
+                    String primary = leasePrimary;
+                    if (state != State.BACKUP || primary == null) {
+                        continue;
+                    }
+                    if (connectionToPrimary == null || !connectionToPrimary.destination.equals(primary)) {
+                        if (connectionToPrimary != null) {
+                            connectionToPrimary.close();
+                        }
+                        String[] hostPort = primary.split(":");
+                        connectionToPrimary = new Connection(hostPort[0], Integer.parseInt(hostPort[1]), (int) leaseMs);
+                    }
+                    long[] request = lease.requesting();
+                    lease.granted(request, connectionToPrimary.client.requestLease(host, port));
+                    lastPrimaryContact = System.nanoTime();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    // primary unreachable: the lease just runs out, ServerWatcher will sort out who is who
+                    if (connectionToPrimary != null) {
+                        connectionToPrimary.close();
+                        connectionToPrimary = null;
+                    }
+                }
+            }
+        }, "read-lease");
+        renewer.setDaemon(true);
+        renewer.start();
+    }
+
+    /*
+     * turn on local persistence: load whatever is on disk into the map, then log every write from here on
+     * and checkpoint the map every checkpointIntervalMs
+     */
+    public void enablePersistence(WriteAheadLog wal, long checkpointIntervalMs) throws java.io.IOException {
+        // the applied watermark while replaying: a plain int, `applied` gets it once at the end. A record that arrives
+        // out of order (frames can) stops it at the gap, so it may come out low, which only makes the next catch-up
+        // resend a few writes
+        int[] replayed = { -1 };
+        WriteAheadLog.Store store = new WriteAheadLog.Store() {
+            public void replayPut(int seq, String key, String value) {
+                // the log is in apply order, so on a tie the later record wins
+                myMap.putIfNewer(key, value, seq, false);
+                if (replayed[0] >= 0 && seq == replayed[0] + 1) {
+                    replayed[0] = seq;
+                }
+            }
+
+            public void replayEntry(int seq, String key, String value) {
+                myMap.putIfNewer(key, value, seq, false);
+            }
+
+            public void replayReset() {
+                myMap.clear();
+                replayed[0] = -1;
+                followingLogId = 0;
+            }
+
+            public void replayJoin(long logId, int baseSeq) {
+                followingLogId = logId;
+                replayed[0] = baseSeq;
+            }
+
+            // a snapshot of the map (see Snapshot), so the checkpoint is one point in time and puts don't wait for it
+            public void forEachEntry(WriteAheadLog.EntryConsumer consumer) throws java.io.IOException {
+                java.io.IOException[] failure = new java.io.IOException[1];
+                try (Snapshot snapshot = myMap.snapshot(requestSeq::get)) {
+                    snapshot.forEach((key, value, seq) -> {
+                        try {
+                            consumer.accept(seq, key, value);
+                            return true;
+                        } catch (java.io.IOException e) {
+                            failure[0] = e;
+                            return false;
+                        }
+                    });
+                } catch (IllegalStateException e) {
+                    throw new java.io.IOException("Checkpoint cut short: " + e.getMessage());      // the map was reset meanwhile
+                }
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+            }
+
+            public long followingLogId() {
+                return followingLogId;
+            }
+
+            public int appliedWatermark() {
+                return applied.get();
+            }
+        };
+
+        int maxSeq = wal.replay(store);
+        applied.reset(replayed[0]);
+        requestSeq.accumulateAndGet(maxSeq, Math::max);
+        System.out.println("HANDLER: recovered " + myMap.size() + " keys from disk");
+        this.wal = wal;
+
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "wal-checkpoint");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                wal.checkpoint(store);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, checkpointIntervalMs, checkpointIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    // append a write to the write-ahead log (if persistence is on), returns the LSN to wait for, 0 = nothing to wait for
+    // always called AFTER the write is in the map, WriteAheadLog.checkpoint relies on that order
+    private long logPut(int seq, String key, String value) {
+        return (wal == null) ? 0 : wal.appendPut(seq, key, value);
+    }
+
+    private void awaitDurable(long lsn) {
+        if (wal != null && lsn > 0) {
+            wal.awaitDurable(lsn);
+        }
+    }
+
+    /*
+     * connections to the current backup, borrowed from / returned to the backupManager pool
+     */
+    public Connection popBackupConnection() throws org.apache.thrift.TException {
+        String h = backupHost;
+        if (h == null) {
+            throw new org.apache.thrift.transport.TTransportException("No backup");
+        }
+        return backupManager.popConnection(h, backupPort);
+    }
+
+    public void addBackupConnection(Connection c) {
+        backupManager.addConnection(c);
+    }
+
+    // an RPC to the backup failed: throw the socket away, drop the whole pool so a dead backup can't leak sockets,
+    // and carry on alone (unless the backup was already replaced by a new one in the meantime)
+    public void backupFailed(Connection c) {
+        String dest = (c != null) ? c.destination : backupHost + ":" + backupPort;
+        if (c != null) {
+            backupManager.discardConnection(c);
+        }
+        if (dest.equals(backupHost + ":" + backupPort) && !isChain()) {
+            setIsAlone(true);
+        }
+        backupManager.closeDestination(dest);
+        System.out.println("HANDLER: backup " + dest + " failed, pool was:\n" + backupManager.getMetrics());
+    }
+
     public String get(String key) throws org.apache.thrift.TException {	
         // from the slides:
         // Do not let a backup storage node answer get/put RPCs from the client 
         // since it may not have the latest data. Throw exceptions instead.
-        if (state == State.SPARE ) {
+        // (unless it holds a read lease, then it has every acknowledged write, see ReadLease)
+        long start = System.nanoTime();
+        admit(readLimit);
+        try {
+            checkReadable(getOp, start);
+
+            String ret = myMap.get(key);
+            if (state == State.PRIMARY) {
+                lease.awaitAcked(key);                  // don't hand out a value the backup might not have yet
+            }
+            if (ret == null) {
+                ret = "";
+            }
+            getOp.record(start, key.length(), ret.length());
+            return ret;
+        } finally {
+            release(readLimit, start);
+        }
+    }
+
+    private void checkReadable(Metrics.Op op, long start) throws org.apache.thrift.TException {
+        State s = state;
+        if (isChain()) {
+            if (s == State.SPARE || !isAlone) {
+                op.failed(start);
+                throw new org.apache.thrift.TException("Only the tail of the chain responds to GET operation.");
+            }
+            return;
+        }
+        if (s != State.PRIMARY && !(s == State.BACKUP && lease.isHeld())) {
+            op.failed(start);
             throw new org.apache.thrift.TException("Backup is not allowed to respond to GET operation.");
         }
+    }
 
-        String ret = myMap.get(key);
-        if (ret == null) {
-            return "";
-        } else {
-            return ret;
+    /*
+     * get for a client near-cache (see NearCache): the value and the sequence of the write that produced it
+     * only the primary answers, the client relies on every write it learns about from awaitInvalidations being
+     * applied here already
+     */
+    public VersionedValue getVersioned(String key) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        admit(readLimit);
+        try {
+            if (state != State.PRIMARY || isChain()) {
+                getOp.failed(start);
+                throw new org.apache.thrift.TException("Only the primary responds to getVersioned.");
+            }
+            int[] seq = { 0 };
+            String value = myMap.get(key, seq);
+            lease.awaitAcked(key);
+            if (value == null) {
+                value = "";
+            }
+            getOp.record(start, key.length(), value.length());
+            return new VersionedValue(value, seq[0]);
+        } finally {
+            release(readLimit, start);
         }
     }
 
+    /*
+     * long poll of a near-caching client: the keys written after afterSeq of our log, as soon as there are any
+     * (at most MAX_INVALIDATIONS writes per answer, with more set so the client asks again), or none after maxWaitMs
+     * a client that asks about another log (failover) or about writes the log has already dropped gets reset
+     */
+    public Invalidations awaitInvalidations(long logId, int afterSeq, int maxWaitMs) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        if (state != State.PRIMARY || isChain()) {
+            invalidationsOp.failed(start);
+            throw new org.apache.thrift.TException("Only the primary serves invalidations.");
+        }
+        if (logId == replicationLog.getLogId() && afterSeq >= requestSeq.get()) {
+            replicationLog.awaitAppend(logId, afterSeq, Math.min(maxWaitMs, 60000));
+        }
+        int upto = requestSeq.get();
+        boolean more = false;
+        List<ReplicationLog.Entry> writes = null;
+        if (logId == replicationLog.getLogId() && afterSeq <= upto) {
+            if (upto - afterSeq > MAX_INVALIDATIONS) {
+                upto = afterSeq + MAX_INVALIDATIONS;
+                more = true;
+            }
+            writes = replicationLog.read(logId, afterSeq, upto);
+        }
+        if (writes == null) {
+            invalidationsOp.record(start, 0, 0);
+            return new Invalidations(replicationLog.getLogId(), requestSeq.get(), new ArrayList<String>(), new ArrayList<Integer>(), true, false);
+        }
+
+        // a hot key may have been written many times, the client only needs its last sequence
+        Map<String, Integer> last = new LinkedHashMap<String, Integer>();
+        long bytesOut = 0;
+        for (ReplicationLog.Entry e : writes) {
+            if (last.put(e.key, e.seq) == null) {
+                bytesOut += e.key.length();
+            }
+        }
+        invalidationsOp.record(start, 0, bytesOut);
+        return new Invalidations(logId, upto, new ArrayList<String>(last.keySet()), new ArrayList<Integer>(last.values()), false, more);
+    }
+
+    public long requestLease(String host, int port) {
+        if (state == State.PRIMARY && host.equals(backupHost) && port == backupPort) {
+            return lease.grant();
+        }
+        return 0;
+    }
+
     /* 
      * this function is from POV of primary, PUT request came in from client
      * primary updates its local map
      * primary also needs to forward PUT operation to backups
      */ 
     public void put(String key, String value) throws org.apache.thrift.TException {        
-        if (!state.equals(State.SPARE)) {
-            myMap.put(key, value); // first update local map of primary
-            // forward the PUT operation to backup too, if there is one
+        long start = System.nanoTime();
+        admit(writeLimit);
+        try {
+            if (!state.equals(State.SPARE)) {
+                // first update local map of primary, the sequence number is taken while the key is locked
+                // so two puts on the same key get their numbers in the order they land in the map
+                CountDownLatch unacked = lease.writing(key);
+                int seq = myMap.put(key, value, requestSeq::incrementAndGet);
+                replicationLog.append(seq, key, value);
+                long lsn = logPut(seq, key, value);
+                // forward the PUT operation to backup too, if there is one
+                // (blocks until the replication frame carrying this write is acked by the backup)
+                if (!isAlone) {
+                    replication.replicate(key, value, seq);
+                }
+                lease.awaitWritable();
+                // the local fsync (if any) ran in parallel with the replication round trip
+                awaitDurable(lsn);
+                lease.acked(key, unacked);
+                putOp.record(start, key.length() + value.length(), 0);
+            } else {
+                // from the slides:
+                // Do not let a backup storage node answer get/put RPCs from the client 
+                // since it may not have the latest data. Throw exceptions instead.
+                putOp.failed(start);
+                throw new org.apache.thrift.TException("Spare is not allowed to respond to GET operation.");
+            }
+        } finally {
+            release(writeLimit, start);
+        }
+    }
+
+    /*
+     * atomic read-modify-write, so a counter or a flag doesn't need a get and a put (and a lock around them)
+     * "" and a missing key are the same thing, like for get
+     */
+    public boolean compareAndSet(String key, String expected, String newValue) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        String next = readModifyWrite(compareAndSetOp, start, key, key.length() + expected.length() + newValue.length(),
+            cur -> expected.equals((cur == null) ? "" : cur) ? newValue : null);
+        return next != null;
+    }
+
+    // the value is a decimal long, a missing key counts as 0
+    public long incrementBy(String key, long delta) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        String next = readModifyWrite(incrementByOp, start, key, key.length() + 8,
+            cur -> Long.toString(Math.addExact((cur == null || cur.isEmpty()) ? 0 : Long.parseLong(cur), delta)));
+        return Long.parseLong(next);
+    }
+
+    public int append(String key, String suffix) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        String next = readModifyWrite(appendOp, start, key, key.length() + suffix.length(),
+            cur -> (cur == null) ? suffix : cur.concat(suffix));
+        return next.length();
+    }
+
+    /*
+     * update computes the new value from the current one (null = missing) while the key is locked (StorageEngine.update),
+     * then the result goes the same way as a put: replication log, WAL, backup, lease. The backup gets the resulting
+     * value with its own sequence number, it never runs the operation itself, so a retried frame can't apply it twice.
+     * returns the new value, null if update decided not to write
+     */
+    private String readModifyWrite(Metrics.Op op, long start, String key, long bytesIn, UnaryOperator<String> update) throws org.apache.thrift.TException {
+        admit(writeLimit);
+        try {
+            if (state.equals(State.SPARE)) {
+                op.failed(start);
+                throw new org.apache.thrift.TException("Spare is not allowed to respond to " + op.name + " operation.");
+            }
+            CountDownLatch unacked = lease.writing(key);
+            String[] next = { null };
+            int seq;
+            try {
+                seq = myMap.update(key, cur -> next[0] = update.apply(cur), requestSeq::incrementAndGet);
+            } catch (NumberFormatException | ArithmeticException e) {
+                lease.withdrawn(key, unacked);
+                op.failed(start);
+                throw new InvalidOperation(op.name + " on " + key + ": " + e.getMessage());
+            }
+            if (seq == 0) {
+                lease.withdrawn(key, unacked);          // compareAndSet that didn't match
+                op.record(start, bytesIn, 0);
+                return null;
+            }
+            replicationLog.append(seq, key, next[0]);
+            long lsn = logPut(seq, key, next[0]);
             if (!isAlone) {
-                forwardToBackup(key, value);
+                replication.replicate(key, next[0], seq);
             }
-        } else {
-            // from the slides:
-            // Do not let a backup storage node answer get/put RPCs from the client 
-            // since it may not have the latest data. Throw exceptions instead.
-            throw new org.apache.thrift.TException("Spare is not allowed to respond to GET operation.");
+            lease.awaitWritable();
+            awaitDurable(lsn);
+            lease.acked(key, unacked);
+            op.record(start, bytesIn, 0);
+            return next[0];
+        } finally {
+            release(writeLimit, start);
         }
     }
 
-    private void forwardToBackup(String key, String value) throws org.apache.thrift.TException {
-        Connection connectionToBackup = null;
+    /*
+     * batched GET: one round trip for many keys, values come back in the same order as the keys
+     * missing keys are returned as "" just like get()
+     */
+    public List<String> multiGet(List<String> keys) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        admit(readLimit);
         try {
-            connectionToBackup = Manager.popConnection();
-            connectionToBackup.client.forwardRequest(key, value, requestSeq.incrementAndGet());
-            Manager.addConnection(connectionToBackup);
-        } catch (Exception e) {
-            this.isAlone = true;
-            e.printStackTrace();
+            checkReadable(multiGetOp, start);
+
+            List<String> ret = new ArrayList<String>(keys.size());
+            long bytesIn = 0, bytesOut = 0;
+            for (String key : keys) {
+                String value = myMap.get(key);
+                ret.add(value == null ? "" : value);
+                bytesIn += key.length();
+                bytesOut += (value == null) ? 0 : value.length();
+            }
+            if (state == State.PRIMARY) {
+                for (String key : keys) {
+                    lease.awaitAcked(key);
+                }
+            }
+            multiGetOp.record(start, bytesIn, bytesOut);
+            return ret;
+        } finally {
+            release(readLimit, start);
+        }
+    }
+
+    /*
+     * one page of a range scan, keys in [startKey, endKey) in order, read like multiGet (same nodes may answer)
+     * the page ends after `limit` keys or MAX_SCAN_BYTES; its cursor is the last key, the next page starts after it,
+     * so a scan never holds anything on the server between pages. Every value is current when it is read, but the
+     * pages together are not a snapshot: a key written during the scan may show its old or its new value.
+     */
+    public ScanResult scan(String startKey, String endKey, int limit, String cursor) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        admit(scanLimit);
+        try {
+            checkReadable(scanOp, start);
+            if (!(myMap instanceof OrderedIndex)) {
+                scanOp.failed(start);
+                throw new org.apache.thrift.TException("No ordered index, start the nodes with --index=ordered.");
+            }
+
+            int max = Math.max(1, Math.min(limit, MAX_SCAN_PAGE));
+            List<String> keys = new ArrayList<String>(Math.min(max, 1024));
+            List<String> values = new ArrayList<String>(Math.min(max, 1024));
+            String next = "";
+            long bytesOut = 0;
+            for (String key : ((OrderedIndex) myMap).range(startKey, endKey.isEmpty() ? null : endKey, cursor.isEmpty() ? null : cursor)) {
+                if (keys.size() == max || bytesOut >= MAX_SCAN_BYTES) {
+                    next = keys.get(keys.size() - 1);   // there is more
+                    break;
+                }
+                String value = myMap.get(key);
+                if (value == null) {
+                    continue;                           // cleared meanwhile
+                }
+                keys.add(key);
+                values.add(value);
+                bytesOut += key.length() + value.length();
+            }
+            if (state == State.PRIMARY) {
+                for (String key : keys) {
+                    lease.awaitAcked(key);
+                }
+            }
+            scanOp.record(start, startKey.length() + endKey.length(), bytesOut);
+            return new ScanResult(keys, values, next);
+        } finally {
+            release(scanLimit, start);
+        }
+    }
+
+    /*
+     * batched PUT: primary updates its local map for every entry, then replicates the
+     * whole batch to the backup with a single forwardBatch RPC instead of one RPC per key
+     */
+    public void multiPut(Map<String, String> entries) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        admit(writeLimit);
+        try {
+            if (state.equals(State.SPARE)) {
+                multiPutOp.failed(start);
+                throw new org.apache.thrift.TException("Spare is not allowed to respond to PUT operation.");
+            }
+
+            List<String> keys = new ArrayList<String>(entries.size());
+            List<String> values = new ArrayList<String>(entries.size());
+            List<Integer> sequences = new ArrayList<Integer>(entries.size());
+            List<CountDownLatch> unacked = new ArrayList<CountDownLatch>(entries.size());
+            long lsn = 0;
+            long bytesIn = 0;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                unacked.add(lease.writing(entry.getKey()));
+                int seq = myMap.put(entry.getKey(), entry.getValue(), requestSeq::incrementAndGet);
+                replicationLog.append(seq, entry.getKey(), entry.getValue());
+                lsn = logPut(seq, entry.getKey(), entry.getValue());
+                keys.add(entry.getKey());
+                values.add(entry.getValue());
+                sequences.add(seq);
+                bytesIn += entry.getKey().length() + entry.getValue().length();
+            }
+            if (!isAlone) {
+                replication.replicate(keys, values, sequences);
+            }
+            lease.awaitWritable();
+            awaitDurable(lsn);
+            for (int i = 0; i < keys.size(); i++) {
+                lease.acked(keys.get(i), unacked.get(i));
+            }
+            multiPutOp.record(start, bytesIn, 0);
+        } finally {
+            release(writeLimit, start);
         }
     }
 
     /*
      * forwarding PUT request from primary to backups
      * this function is from POV of backup node, primary has called on it
-     * we are updating backups local key-value map, and local sequence map
+     * we are updating backups local key-value map (value and sequence together)
      */
     public void forwardRequest(String key, String value, int sequence) {
-        // already wrote to this key in the hashmap
-        if (requestSeqMap.containsKey(key)) {
-            // only update map if the value is from a more recent PUT operation
-            // (older writes would have gotten overwritten anyway so ignore them)
-            if (sequence >= requestSeqMap.get(key)) {
-                requestSeqMap.put(key, sequence);
-                myMap.put(key, value);
-            }
-        } else {
-            // never written to this key yet
-            requestSeqMap.put(key, sequence);
-            myMap.put(key, value);
+        long start = System.nanoTime();
+        lastPrimaryContact = start;
+        long lsn = applyForwarded(key, value, sequence);
+        applied.applied(Collections.singletonList(sequence));
+        if (isChain() && !isAlone) {
+            replication.replicate(key, value, sequence);   // middle of the chain: ack only once the tail has it
+        }
+        awaitDurable(lsn);
+        forwardRequestOp.record(start, key.length() + value.length(), 0);
+    }
+
+    // returns the LSN of the logged write, or 0 if the write was older than what we have
+    private long applyForwarded(String key, String value, int sequence) {
+        // keep our own counter ahead of everything we've seen, so if we get promoted our writes get newer sequences
+        requestSeq.accumulateAndGet(sequence, Math::max);
+        // only update map if the key is new or the value is from a more recent PUT operation
+        // (older writes would have gotten overwritten anyway so ignore them)
+        // check and update are one atomic step, so two frames racing on the same key can't apply out of order
+        boolean newer = myMap.putIfNewer(key, value, sequence, false);
+        if (isChain()) {
+            replicationLog.append(sequence, key, value);   // our successor may rejoin from this log, see ReplicationLog.follow
+        }
+        if (newer) {
+            return logPut(sequence, key, value);
         }
+        return 0;
+    }
+
+    /*
+     * forwarding a whole batch of PUT requests from primary to backup in one RPC
+     * this function is from POV of backup node, same sequence rules as forwardRequest for each key
+     */
+    public void forwardBatch(List<String> keys, List<String> values, List<Integer> sequences) {
+        long start = System.nanoTime();
+        lastPrimaryContact = start;
+        long lsn = 0;
+        long bytesIn = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            lsn = Math.max(lsn, applyForwarded(keys.get(i), values.get(i), sequences.get(i)));
+            bytesIn += keys.get(i).length() + values.get(i).length();
+        }
+        applied.applied(sequences);
+        if (isChain() && !isAlone) {
+            replication.replicate(keys, values, sequences);
+        }
+        awaitDurable(lsn);                              // one wait (one group fsync) for the whole frame
+        forwardBatchOp.record(start, bytesIn, 0);
     }
 
     /*
@@ -154,62 +831,337 @@ public class KeyValueHandler implements KeyValueService.Iface {
      * Do not wait for each key to be overwritten by a new put operation.
      */ 
     public void completeDataTransfer(String host, int port) throws org.apache.thrift.TException {
-        // flush the Manager's thrift clients and make new ones (for the new backup)
-        Manager.initializeConnections(host, port);
-        setIsAlone(false);
+        setBackup(host, port);
+        fullTransfer();
+    }
 
-        int sendLimit = 100000;
-        List<String> keys = new ArrayList<String>(myMap.keySet());
+    // retire the pool to the old backup (if any) and pre-open connections to the new one
+    private void setBackup(String host, int port) {
+        lease.stop(() -> {});                           // granted again once the (new) backup is caught up
+        if (backupHost != null && !(backupHost.equals(host) && backupPort == port)) {
+            backupManager.closeDestination(backupHost, backupPort);
+        }
+        backupHost = host;
+        backupPort = port;
+        backupManager.prewarm(host, port, 8);
+        negotiateCompression();
+    }
 
-        List<String> values = new ArrayList<String>(keys.size());
-        for(int i = 0; i < keys.size(); i++) {
-            values.add(i, myMap.get(keys.get(i)));
+    // propose our codec to the (new) backup; if it says no, or is too old to know the RPC, frames go out uncompressed
+    private void negotiateCompression() {
+        backupCodec = null;
+        if (compressionLevel < 0) {
+            return;
         }
-        int dataToSend = keys.size();
-        if (dataToSend <= sendLimit) {
-            // send whole hash map in one go
-            sendDataToBackup(keys, values);
-        } else {
-            int start = 0;
-            int end = sendLimit;
-            int remaining = dataToSend;
-            while(end <= dataToSend) {
-                sendDataToBackup(keys.subList(start, end), values.subList(start, end));
-                remaining -= (end - start);
-                start = end;
-                if (remaining > sendLimit) {
-                    end = start + sendLimit;
-                } else {
-                    if (remaining == 0){
-                        break;
-                    }
-                    end = start + remaining;
-                }
+        byte[] dictionary = (dictionaryBytes > 0) ? FrameCodec.train(myMap, dictionaryBytes) : new byte[0];
+        FrameCodec codec = new FrameCodec(compressionLevel, new Random().nextInt(), dictionary);
+        Connection connectionToBackup = null;
+        try {
+            connectionToBackup = popBackupConnection();
+            int accepted = connectionToBackup.client.negotiateCompression("deflate", codec.getDictId(), ByteBuffer.wrap(codec.getDictionary()));
+            addBackupConnection(connectionToBackup);
+            if (accepted == 1) {
+                backupCodec = codec;
             }
+            System.out.println("HANDLER: backup " + backupHost + ":" + backupPort + (accepted == 1 ? " takes" : " refused")
+                + " deflate frames with a " + dictionary.length + " byte dictionary");
+        } catch (TApplicationException e) {
+            addBackupConnection(connectionToBackup);    // an older backup, the connection itself is fine
+        } catch (Exception e) {
+            // the transfer that follows will find out the backup is gone
+            if (connectionToBackup != null) {
+                backupManager.discardConnection(connectionToBackup);
+            }
+        }
+    }
+
+    /*
+     * this function is from POV of backup node, our primary proposes how it wants to compress what it sends us
+     * we keep the previous codec too, frames packed with it may still be on the wire
+     */
+    public int negotiateCompression(String codec, int dictId, ByteBuffer dictionary) {
+        if (!codec.equals("deflate")) {
+            return 0;
+        }
+        byte[] dict = new byte[dictionary.remaining()];
+        dictionary.duplicate().get(dict);
+        FrameCodec inbound = new FrameCodec(0, dictId, dict);
+        if (inboundCodecs.size() >= 4) {
+            inboundCodecs.clear();
+        }
+        FrameCodec previous = inboundCodec;
+        if (previous != null) {
+            inboundCodecs.put(previous.getDictId(), previous);
+        }
+        inboundCodecs.put(dictId, inbound);
+        inboundCodec = inbound;
+        return 1;
+    }
+
+    public void forwardCompressed(ByteBuffer frame) throws org.apache.thrift.TException {
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        List<Integer> sequences = new ArrayList<Integer>();
+        decode(frame, keys, values, sequences);
+        forwardBatch(keys, values, sequences);
+    }
+
+    public void setMapChunkCompressed(ByteBuffer chunk) throws org.apache.thrift.TException {
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        List<Integer> sequences = new ArrayList<Integer>();
+        decode(chunk, keys, values, sequences);
+        setMapChunk(keys, values, sequences);
+    }
+
+    private void decode(ByteBuffer frame, List<String> keys, List<String> values, List<Integer> sequences) throws org.apache.thrift.TException {
+        FrameCodec codec = (frame.remaining() >= 5) ? inboundCodecs.get(frame.getInt(frame.position() + 1)) : null;
+        if (codec == null) {
+            throw new org.apache.thrift.TException("Compressed frame but no codec negotiated for it");
+        }
+        try {
+            codec.decode(frame, keys, values, sequences);
+        } catch (java.io.IOException e) {
+            throw new org.apache.thrift.TException("Bad compressed frame", e);
         }
     }
 
-    private void sendDataToBackup(List<String> keys, List<String> values) throws org.apache.thrift.TException {
+    // wipe the backup, then start forwarding and stream a snapshot of the map to it; returns the sequence the snapshot
+    // is at: the backup gets every write up to it from the snapshot and every later one from forwarding
+    // (in a chain the writes stay queued for the successor meanwhile, a forward that lands before the reset is wiped but
+    // its write is in our map before the snapshot is taken)
+    private int fullTransfer() throws org.apache.thrift.TException {
+        if (!isChain()) {
+            setIsAlone(true);
+        }
         Connection connectionToBackup = null;
         try {
-            connectionToBackup = Manager.popConnection();
-            connectionToBackup.client.setMap(keys, values);
-            Manager.addConnection(connectionToBackup);
+            connectionToBackup = popBackupConnection();
+            connectionToBackup.client.resetMap();
+            addBackupConnection(connectionToBackup);
         } catch (Exception e) {
-            this.isAlone = true;
-            e.printStackTrace();
+            backupFailed(connectionToBackup);
+            throw new org.apache.thrift.TException("Could not reset backup " + backupHost + ":" + backupPort, e);
+        }
+        setIsAlone(false);
+
+        // everything after the snapshot's sequence is forwarded, everything up to it is in the snapshot; stream it to
+        // the new backup in byte-sized chunks, see SnapshotTransfer
+        try (Snapshot snapshot = myMap.snapshot(requestSeq::get)) {
+            int baseSeq = snapshot.getSeq();
+            SnapshotTransfer transfer = new SnapshotTransfer(this, snapshot, transferStreams, transferChunkBytes);
+            lastTransfer = transfer;
+            if (transfer.run()) {
+                replication.resetAckedSeq(baseSeq);
+            }
+            return baseSeq;
+        }
+    }
+
+    /*
+     * a backup (re)joins: if it followed our current log and the writes it is missing are still in the replication log,
+     * only those are sent; otherwise it gets a full snapshot
+     * this function is from POV of primary, the joining node calls it (see joinPrimary)
+     */
+    public JoinResult joinAsBackup(String host, int port, long logId, int lastSeq) throws org.apache.thrift.TException {
+        long start = System.nanoTime();
+        setBackup(host, port);
+
+        if (lastSeq >= 0 && logId == replicationLog.getLogId()) {
+            setIsAlone(false);
+            int baseSeq = requestSeq.get();
+            List<ReplicationLog.Entry> delta = replicationLog.read(logId, lastSeq, baseSeq);
+            if (delta != null && sendDelta(delta)) {
+                replication.resetAckedSeq(baseSeq);
+                System.out.println("HANDLER: " + host + ":" + port + " caught up with " + delta.size() + " writes in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+                lease.start(() -> !isAlone);
+                return new JoinResult(logId, baseSeq, true);
+            }
+        }
+
+        int baseSeq = fullTransfer();
+        System.out.println("HANDLER: " + host + ":" + port + " got a full snapshot in " + (System.nanoTime() - start) / 1000000 + " ms");
+        lease.start(() -> !isAlone);                    // not if the transfer failed
+        return new JoinResult(replicationLog.getLogId(), baseSeq, false);
+    }
+
+    private boolean sendDelta(List<ReplicationLog.Entry> delta) {
+        int chunk = 4096;
+        for (int start = 0; start < delta.size(); start += chunk) {
+            List<ReplicationLog.Entry> part = delta.subList(start, Math.min(delta.size(), start + chunk));
+            List<String> keys = new ArrayList<String>(part.size());
+            List<String> values = new ArrayList<String>(part.size());
+            List<Integer> sequences = new ArrayList<Integer>(part.size());
+            for (ReplicationLog.Entry e : part) {
+                keys.add(e.key);
+                values.add(e.value);
+                sequences.add(e.seq);
+            }
+            Connection connectionToBackup = null;
+            try {
+                connectionToBackup = popBackupConnection();
+                connectionToBackup.client.forwardBatch(keys, values, sequences);
+                addBackupConnection(connectionToBackup);
+            } catch (Exception e) {
+                backupFailed(connectionToBackup);
+                e.printStackTrace();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * from POV of the node that is becoming the backup: report how far we got with the primary's log and let the
+     * primary fill us in (ServerWatcher calls this instead of completeDataTransfer)
+     * primaryAddress = "host:port" of that primary, where we ask for the read lease once we're caught up
+     */
+    public void joinPrimary(KeyValueService.Client primary, String primaryAddress) throws org.apache.thrift.TException {
+        leasePrimary = null;
+        lease.drop();
+        JoinResult result = primary.joinAsBackup(host, port, followingLogId, applied.get());
+        followingLogId = result.logId;
+        applied.reset(result.baseSeq);
+        if (isChain()) {
+            replicationLog.follow(result.logId, result.baseSeq);
+        }
+        if (wal != null) {
+            awaitDurable(wal.appendJoin(result.logId, result.baseSeq));
+        }
+        leasePrimary = primaryAddress;
+        lastPrimaryContact = System.nanoTime();
+    }
+
+    /*
+     * this function is from POV of backup node, the primary is about to send us a full snapshot
+     * anything we had from an older primary must go, its sequence numbers mean nothing in the new log
+     */
+    public void resetMap() {
+        lease.drop();
+        myMap.clear();
+        applied.reset(-1);
+        if (wal != null) {
+            awaitDurable(wal.appendReset());
         }
     }
 
     /*
      * this function is from POV of backup node, we are updating its local key-value map
-     * its sequence map doesn't need to be set up here, since the key-value map is being initialized, so all sequences will be 0
+     * sequences don't need to be sent here, since the key-value map is being initialized, so all sequences will be 0
+     * (kept for compatibility, completeDataTransfer now uses setMapChunk)
      */
     public void setMap(List<String> keys, List<String> values) {
+        long lsn = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            if (myMap.putIfNewer(keys.get(i), values.get(i), 0, true)) {
+                lsn = logPut(0, keys.get(i), values.get(i));
+            }
+        }
+        awaitDurable(lsn);
+    }
+
+    /*
+     * this function is from POV of backup node, one chunk of the primary's snapshot (see SnapshotTransfer)
+     * an entry is only taken if we don't already have a newer or equal write for that key from forwarding
+     * (the snapshot is at the primary's base sequence, forwarded writes are after it)
+     */
+    public void setMapChunk(List<String> keys, List<String> values, List<Integer> sequences) {
+        long start = System.nanoTime();
+        lastPrimaryContact = start;
+        long lsn = 0;
+        long bytesIn = 0;
         for (int i = 0; i < keys.size(); i++) {
-            if (!myMap.containsKey(keys.get(i))) {
-                myMap.put(keys.get(i), values.get(i));
+            String key = keys.get(i);
+            int sequence = sequences.get(i);
+            requestSeq.accumulateAndGet(sequence, Math::max);
+            if (myMap.putIfNewer(key, values.get(i), sequence, true)) {
+                lsn = logPut(sequence, key, values.get(i));
             }
+            bytesIn += key.length() + values.get(i).length();
         }
+        awaitDurable(lsn);
+        setMapChunkOp.record(start, bytesIn, 0);
+    }
+
+    /*
+     * everything we count, as flat "group.name" -> value pairs (see Metrics); polled by monitoring and dumped to the
+     * log every --stats-interval-s
+     *
+     *   store.*         storage engine specifics (tiered: memory budget, hot bytes, cold keys, hit ratio, demotions;
+     *                   indexedKeys with --index=ordered)
+     *   node.*          role (0 = PRIMARY, 1 = BACKUP, 2 = SPARE, -1 = not started), keys, off-heap bytes
+     *   seq.*           last sequence number issued (primary) or seen (backup), and the backup's applied watermark
+     *   replication.*   chain length (0 = primary/backup) and whether we are its tail
+     *                   primary: whether it has a backup (successor), highest sequence the backup acked, lagSeqs = writes issued
+     *                   but not yet acked, writes queued for a sender, plus forwardBatch round trips per frame
+     *                   backup: lagSeqs = writes seen but not yet applied without gaps
+     *   snapshot.*      progress of the last (or running) snapshot transfer to a backup
+     *   failover.*      how often this node took over as primary, and how long writes stalled the last time
+     *   lease.*         read lease length and whether this backup holds it
+     *   compressOut.*   frames and chunks we compressed for the current backup: raw vs wire bytes, ratio, codec MB/s
+     *   compressIn.*    the same for what we decompressed (with the last codec our primary negotiated)
+     *   pool.*          connections to the backup, see Manager
+     *   <rpc>.*         calls, errors, payload bytes and latency percentiles (us) of every data RPC
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+        State s = state;
+        int last = requestSeq.get();
+        stats.put("node.state", (s == null) ? -1L : s.ordinal());
+        stats.put("node.keys", (long) myMap.size());
+        stats.put("node.offHeapBytes", myMap.offHeapBytes());
+        stats.put("seq.last", (long) last);
+        stats.put("seq.applied", (long) applied.get());
+
+        boolean hasBackup = (isChain() ? s != State.SPARE : s == State.PRIMARY) && !isAlone;
+        stats.put("replication.backup", hasBackup ? 1L : 0L);
+        stats.put("replication.chain", (long) chainLength);
+        stats.put("replication.tail", (isChain() && s != State.SPARE && isAlone) ? 1L : 0L);
+        stats.put("replication.queued", (long) replication.getQueued());
+        if (s == State.PRIMARY) {
+            int acked = replication.getAckedSeq();
+            stats.put("replication.ackedSeq", (long) acked);
+            stats.put("replication.lagSeqs", hasBackup ? Math.max(0L, last - acked) : 0L);
+        } else if (s == State.BACKUP) {
+            int watermark = applied.get();
+            stats.put("replication.lagSeqs", (watermark < 0) ? -1L : Math.max(0L, last - watermark));
+        }
+
+        SnapshotTransfer transfer = lastTransfer;
+        if (transfer != null) {
+            stats.put("snapshot.running", transfer.isRunning() ? 1L : 0L);
+            stats.put("snapshot.failed", transfer.hasFailed() ? 1L : 0L);
+            stats.put("snapshot.keysTotal", transfer.getKeysTotal());
+            stats.put("snapshot.keysSent", transfer.getKeysSent());
+            stats.put("snapshot.bytesSent", transfer.getBytesSent());
+        }
+
+        stats.put("failover.count", failovers);
+        stats.put("failover.lastMs", lastFailoverMs);
+        stats.put("failover.lastDetectMs", lastDetectMs);
+
+        stats.put("lease.ms", lease.getLeaseMs());
+        stats.put("lease.held", (s == State.BACKUP && lease.isHeld()) ? 1L : 0L);
+
+        myMap.addStats(stats, "store");
+
+        AdmissionController a = admission;
+        if (a != null) {
+            a.addStats(stats, "admission");
+        }
+
+        FrameCodec out = backupCodec;
+        if (out != null) {
+            out.addStats(stats, "compressOut");
+        }
+        FrameCodec in = inboundCodec;
+        if (in != null) {
+            in.addStats(stats, "compressIn");
+        }
+
+        backupManager.addStats(stats, "pool");
+        metrics.addTo(stats);
+        return stats;
     }
 }
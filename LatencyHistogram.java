@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Latency histogram with HdrHistogram-style log-linear buckets
+ *
+ * ... values 0..127 get a bucket each, after that every power of two [2^e, 2^(e+1)) is cut into 64 equal buckets,
+ * so a recorded value is off by at most 1/64 (~1.6%) whatever its magnitude, and the whole long range fits in
+ * 3712 counters. Recording is one atomic increment, so many threads can share one histogram without a lock.
+ *
+ * Units are up to the caller (A3Client records microseconds).
+ */
+public class LatencyHistogram {
+    static final int LINEAR = 128;                      // values below this are exact
+    static final int SUB = 64;                          // buckets per power of two above that
+    static final int SIZE = LINEAR + (63 - 7) * SUB;
+
+    private AtomicLongArray counts = new AtomicLongArray(SIZE);
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong sum = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    static int index(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int e = 63 - Long.numberOfLeadingZeros(v);      // 2^e <= v < 2^(e+1), e >= 7
+        return LINEAR + (e - 7) * SUB + (int) ((v >>> (e - 6)) - SUB);
+    }
+
+    // largest value that lands in bucket i
+    static long highest(int i) {
+        if (i < LINEAR) {
+            return i;
+        }
+        int e = (i - LINEAR) / SUB + 7;
+        long low = (long) ((i - LINEAR) % SUB + SUB) << (e - 6);
+        return low + (1L << (e - 6)) - 1;
+    }
+
+    public void record(long v) {
+        if (v < 0) {
+            v = 0;
+        }
+        counts.incrementAndGet(index(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+        long m;
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < SIZE; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long m;
+        long v = other.max.get();
+        while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < SIZE; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0 : (double) sum.get() / n;
+    }
+
+    // value at or below which p (0..1) of the recorded values are, 0 if nothing was recorded
+    public long getPercentile(double p) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < SIZE; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highest(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
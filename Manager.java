@@ -1,84 +1,322 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.thrift.*;
 import org.apache.thrift.transport.*;
 import org.apache.thrift.protocol.*;
 
-/* 
- * The purpose of this class is to maintain Thrift Client connections from the PRIMARY to the BACKUP
- * 
+/*
+ * The purpose of this class is to maintain Thrift Client connections from this node to other nodes (e.g. PRIMARY -> BACKUP)
+ *
  * ... this is so that we don't need to make new Client connections every time we want to forward something
  * from PRIMARY -> BACKUP; instead we reuse existing ones because creating Thrift connections is kind of slow
- * 
- * This class does this by using static methods: i.e. the methods and objects don't belong to an instance
- * of the class, rather to the class itself.s
+ *
+ * Every destination ("host:port") gets its own Pool:
+ *  - idle connections sit in a lock-free deque, borrowing and returning never takes a monitor
+ *  - a semaphore caps the number of live connections (idle + borrowed) at maxPerDestination, a borrower waits at most
+ *    acquireTimeoutMs for one to free up instead of opening sockets without limit
+ *  - connections that failed an RPC are discarded by the caller, closed ones are dropped on checkout, and a background
+ *    thread evicts connections that have been idle for longer than idleTimeoutMs
+ *  - one that sat idle for more than CHECK_IDLE_MS is probed before it is handed out (and by the background thread),
+ *    so a peer that restarted or dropped it costs a reconnect instead of a failed RPC
+ *  - prewarm() opens connections up front so the first forwards don't pay for the TCP + Thrift handshake
+ *  - each pool counts what it does, see getMetrics()
+ *  - close() stops the background thread and closes every pool, for owners that go away before the JVM does
  */
 
 public class Manager {
-    private static List<Connection> connections = new ArrayList<>();
+    static final long CHECK_IDLE_MS = 1000;             // a connection idle for longer is probed (isAlive) before reuse
 
-    private static String destIP;
-    private static int destPort;
+    private ConcurrentHashMap<String, Pool> pools;
+    private int maxPerDestination;
+    private long acquireTimeoutMs;
+    private long idleTimeoutMs;
+    private int socketTimeoutMs;
+    private ScheduledExecutorService evictor;
+    private volatile boolean closed;
 
-    // method to initialize/create THRIFT client connections                        <-- used when we establish a new BACKUP
-    public static void initializeConnections(String IP, int port){
-        // close existing connections before creating new ones
-        closeConnections();
+    static class Pool {
+        String host;
+        int port;
+        ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+        Semaphore permits;                              // one permit per connection that may still be opened / handed out
+        volatile boolean closed;
 
-        destIP = IP;
-        destPort = port;
+        // metrics
+        AtomicLong created = new AtomicLong();
+        AtomicLong destroyed = new AtomicLong();
+        AtomicLong borrowed = new AtomicLong();
+        AtomicLong timeouts = new AtomicLong();
+        AtomicLong waitNanos = new AtomicLong();
 
-        // System.out.println("MANAGER: initializeConnections to IP: " + IP + " Port#: " + port + "for the data transfer");
-        // just make one initial THRIFT client connection
-        for (int i = 0; i < 20; i++) {
+        Pool(String host, int port, int maxSize) {
+            this.host = host;
+            this.port = port;
+            this.permits = new Semaphore(maxSize);
+        }
+    }
+
+    public Manager(int maxPerDestination, long acquireTimeoutMs, long idleTimeoutMs, int socketTimeoutMs) {
+        this.pools = new ConcurrentHashMap<>();
+        this.maxPerDestination = maxPerDestination;
+        this.acquireTimeoutMs = acquireTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.socketTimeoutMs = socketTimeoutMs;
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "manager-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1, idleTimeoutMs / 2);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    private Pool pool(String host, int port) {
+        return pools.computeIfAbsent(key(host, port), k -> new Pool(host, port, maxPerDestination));
+    }
+
+    // method to open connections ahead of time                                    <-- used when we establish a new BACKUP
+    // tops the idle connections up to count, it is called again on every membership change and must not keep adding;
+    // never opens more than the pool allows (idle + borrowed <= maxPerDestination)
+    public void prewarm(String host, int port, int count) {
+        if (closed) {
+            return;
+        }
+        Pool p = pool(host, port);
+        while (p.idle.size() < count && p.idle.size() < p.permits.availablePermits() && p.permits.tryAcquire()) {
             try {
-                connections.add(new Connection(IP, port));
+                Connection c = new Connection(host, port, socketTimeoutMs);
+                c.pool = p;
+                p.created.incrementAndGet();
+                release(p, c);
             } catch (Exception e) {
-                System.out.println("MANAGER: initializeConnections failed to create connection, connections.size = " + connections.size());
+                p.permits.release();
+                System.out.println("MANAGER: prewarm failed to create connection to " + key(host, port) + ", idle = " + p.idle.size());
+                break;
             }
         }
-        // System.out.println("MANAGER: initializeConnections completed, connections.size = " + connections.size());
     }
 
-    // method to close existing connections
-    private static void closeConnections() {
-        synchronized (connections) {
-            for (Connection c : connections) {
-                try {
-                    c.transport.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+    // method to pop an available Connection to a specified node, opening one if the pool is not full yet
+    public Connection popConnection(String host, int port) throws org.apache.thrift.TException {
+        if (closed) {
+            throw new TTransportException(TTransportException.NOT_OPEN, "Manager is closed");
+        }
+        Pool p = pool(host, port);
+        long start = System.nanoTime();
+        try {
+            if (!p.permits.tryAcquire() && !p.permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+                p.timeouts.incrementAndGet();
+                throw new TTransportException(TTransportException.TIMED_OUT, "No connection to " + key(host, port) + " available within " + acquireTimeoutMs + " ms");
             }
-            connections.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TTransportException("Interrupted while waiting for a connection to " + key(host, port));
+        }
+        p.waitNanos.addAndGet(System.nanoTime() - start);
+
+        if (p.closed) {
+            p.permits.release();
+            throw new TTransportException(TTransportException.NOT_OPEN, "Pool to " + key(host, port) + " is closed");
+        }
+
+        // most recently returned first: it is the most likely to still be healthy
+        long checkBefore = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(CHECK_IDLE_MS);
+        Connection c;
+        while ((c = p.idle.pollFirst()) != null) {
+            if ((c.lastUsed - checkBefore >= 0) ? c.isOpen() : c.isAlive()) {
+                p.borrowed.incrementAndGet();
+                return c;
+            }
+            c.close();
+            p.destroyed.incrementAndGet();
+        }
+
+        try {
+            c = new Connection(host, port, socketTimeoutMs);               // will throw exception up if fails, we want this though
+        } catch (TException e) {
+            p.permits.release();
+            throw e;
         }
+        c.pool = p;
+        p.created.incrementAndGet();
+        p.borrowed.incrementAndGet();
+        return c;
     }
 
-    // method to add a Thrift Connection back to the pool
-    public static void addConnection(Connection c) {
-        synchronized (connections) {   
-            connections.add(c);                                 // By using the synchronized block, the method ensures that both threads properly serialize their access to the connections list
-            connections.notify();
+    // method to add a healthy Thrift Connection back to the pool it was taken from
+    // (not the one registered for its destination now: after closeDestination that may be a new pool it never counted in)
+    public void addConnection(Connection c) {
+        Pool p = c.pool;
+        if (p == null) {
+            c.close();
+            return;
         }
+        release(p, c);
     }
 
-    // method to pop an available Connection from a specified node
-    // method to pop an available Connection from a specified node
-    public static Connection popConnection() throws org.apache.thrift.TException {
-        Connection result = null;
-        synchronized (connections) {
-            if (!connections.isEmpty()) {
-                // If there are available connections, remove one from the list
-                result = connections.remove(0);
+    private void release(Pool p, Connection c) {
+        if (p.closed) {                                         // its permits don't matter any more, nothing left to give back
+            c.close();
+            p.destroyed.incrementAndGet();
+            return;
+        }
+        c.lastUsed = System.nanoTime();
+        p.idle.offerFirst(c);
+        if (p.closed && p.idle.remove(c)) {                     // closeDestination ran concurrently, don't leave it behind
+            c.close();
+            p.destroyed.incrementAndGet();
+            return;
+        }
+        p.permits.release();
+    }
+
+    // method to throw away a Connection whose RPC failed, its socket is in an unknown state
+    public void discardConnection(Connection c) {
+        c.close();
+        Pool p = c.pool;
+        if (p != null) {
+            p.destroyed.incrementAndGet();
+            if (!p.closed) {
+                p.permits.release();
+            }
+        }
+    }
+
+    // method to close every idle connection to a node and forget it       <-- used when the BACKUP goes away or is replaced
+    // connections that are borrowed right now are closed when they are returned or discarded
+    public void closeDestination(String host, int port) {
+        closeDestination(key(host, port));
+    }
+
+    public void closeDestination(String destination) {
+        Pool p = pools.remove(destination);
+        if (p == null) {
+            return;
+        }
+        p.closed = true;
+        p.permits.release(maxPerDestination);                  // borrowers still waiting on it see closed and give up
+        Connection c;
+        while ((c = p.idle.pollFirst()) != null) {
+            c.close();
+            p.destroyed.incrementAndGet();
+        }
+    }
+
+    // method to stop the evictor and close every pool; borrowed connections are closed when they come back
+    public void close() {
+        closed = true;
+        evictor.shutdownNow();
+        for (String destination : pools.keySet()) {
+            closeDestination(destination);
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        long cutoff = now - TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        long checkBefore = now - TimeUnit.MILLISECONDS.toNanos(CHECK_IDLE_MS);
+        for (Pool p : pools.values()) {
+            // the oldest connections are at the tail of the deque
+            Iterator<Connection> it = p.idle.descendingIterator();
+            while (it.hasNext()) {
+                Connection c = it.next();
+                if (c.lastUsed - checkBefore >= 0) {
+                    break;                                      // this one and the rest were used just now
+                }
+                if (c.lastUsed - cutoff >= 0 && c.isOpen()) {
+                    probe(p, c);
+                } else if (p.idle.remove(c)) {
+                    c.close();
+                    p.destroyed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // take an idle connection out while isAlive reads from it, so no borrower gets it meanwhile; the permit keeps the
+    // pool from opening one more in its place
+    private void probe(Pool p, Connection c) {
+        if (!p.permits.tryAcquire()) {
+            return;
+        }
+        if (p.idle.remove(c)) {
+            if (!c.isAlive()) {
+                c.close();
+                p.destroyed.incrementAndGet();
             } else {
-                // If the list is empty, create a new connection and return it
-                result = new Connection(destIP, destPort);  // will throw exception up if fails, we want this though
-                
+                p.idle.offerLast(c);                            // back where it was: still the oldest, lastUsed unchanged
+                if (p.closed && p.idle.remove(c)) {
+                    c.close();
+                    p.destroyed.incrementAndGet();
+                }
             }
         }
-        return result;
+        p.permits.release();
+    }
+
+    // one line per destination, e.g. "host:10123 idle=4 inUse=2 created=7 destroyed=1 borrowed=52311 timeouts=0 avgWaitUs=0"
+    public String getMetrics() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Pool> e : pools.entrySet()) {
+            Pool p = e.getValue();
+            long borrowed = p.borrowed.get();
+            sb.append(e.getKey())
+                .append(" idle=").append(p.idle.size())
+                .append(" inUse=").append(inUse(p))
+                .append(" created=").append(p.created.get())
+                .append(" destroyed=").append(p.destroyed.get())
+                .append(" borrowed=").append(borrowed)
+                .append(" timeouts=").append(p.timeouts.get())
+                .append(" avgWaitUs=").append(borrowed == 0 ? 0 : p.waitNanos.get() / borrowed / 1000)
+                .append('\n');
+        }
+        return sb.toString();
+    }
+
+    // the same numbers summed over all destinations, for getStats (a node has one or two destinations at a time)
+    public void addStats(Map<String, Long> stats, String prefix) {
+        long idle = 0, inUse = 0, created = 0, destroyed = 0, borrowed = 0, timeouts = 0, waitNanos = 0;
+        for (Pool p : pools.values()) {
+            idle += p.idle.size();
+            inUse += inUse(p);
+            created += p.created.get();
+            destroyed += p.destroyed.get();
+            borrowed += p.borrowed.get();
+            timeouts += p.timeouts.get();
+            waitNanos += p.waitNanos.get();
+        }
+        stats.put(prefix + ".destinations", (long) pools.size());
+        stats.put(prefix + ".idle", idle);
+        stats.put(prefix + ".inUse", inUse);
+        stats.put(prefix + ".created", created);
+        stats.put(prefix + ".destroyed", destroyed);
+        stats.put(prefix + ".borrowed", borrowed);
+        stats.put(prefix + ".timeouts", timeouts);
+        stats.put(prefix + ".avgWaitUs", borrowed == 0 ? 0 : waitNanos / borrowed / 1000);
+    }
+
+    // borrowed connections hold the permits, idle ones gave theirs back
+    private int inUse(Pool p) {
+        return Math.max(0, maxPerDestination - p.permits.availablePermits());
     }
 }
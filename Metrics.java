@@ -0,0 +1,111 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.*;
+
+/*
+ * Counters and latency histograms of one storage node, read with the getStats RPC and dumped to the log every
+ * --stats-interval-s seconds
+ *
+ * ... recording never allocates and never takes a lock: counts are LongAdders (contending threads hit different
+ * cells) and a latency is one atomic increment in a LatencyHistogram. Ops are registered once at startup and the
+ * handler keeps a reference to each, so there is no lookup by name on the hot path either.
+ *
+ * Counters run from the start of the process (a monitoring system turns them into rates). Latency percentiles cover
+ * the last complete interval, so a p99 alert sees what is happening now and not the average over the whole uptime;
+ * with the interval turned off they cover everything since start.
+ *
+ * Bytes are payload bytes (lengths of keys and values), Thrift framing is not counted.
+ */
+public class Metrics {
+    static Logger log = Logger.getLogger(Metrics.class.getName());
+
+    // one RPC (or one kind of outgoing call), latencies in microseconds
+    public static class Op {
+        final String name;
+        final LongAdder calls = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        private volatile LatencyHistogram current = new LatencyHistogram();
+        private volatile LatencyHistogram last;         // the previous interval, null until the first rotate
+
+        Op(String name) {
+            this.name = name;
+        }
+
+        public void record(long startNanos, long in, long out) {
+            current.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            calls.increment();
+            if (in != 0) {
+                bytesIn.add(in);
+            }
+            if (out != 0) {
+                bytesOut.add(out);
+            }
+        }
+
+        public void failed(long startNanos) {
+            errors.increment();
+            record(startNanos, 0, 0);
+        }
+
+        // start a new interval; reuses the histogram of the one before last, so nothing is allocated after startup
+        // (a thread that is still recording into the old one while we swap just lands in the closed interval)
+        void rotate() {
+            LatencyHistogram next = (last != null) ? last : new LatencyHistogram();
+            next.reset();
+            last = current;
+            current = next;
+        }
+
+        void addTo(Map<String, Long> stats) {
+            LatencyHistogram h = (last != null) ? last : current;
+            stats.put(name + ".calls", calls.sum());
+            stats.put(name + ".errors", errors.sum());
+            stats.put(name + ".bytesIn", bytesIn.sum());
+            stats.put(name + ".bytesOut", bytesOut.sum());
+            stats.put(name + ".p50Us", h.getPercentile(0.50));
+            stats.put(name + ".p99Us", h.getPercentile(0.99));
+            stats.put(name + ".p999Us", h.getPercentile(0.999));
+            stats.put(name + ".maxUs", h.getMax());
+        }
+    }
+
+    private List<Op> ops = new ArrayList<Op>();
+
+    public synchronized Op op(String name) {
+        Op op = new Op(name);
+        ops.add(op);
+        return op;
+    }
+
+    public synchronized void rotate() {
+        for (Op op : ops) {
+            op.rotate();
+        }
+    }
+
+    public synchronized void addTo(Map<String, Long> stats) {
+        for (Op op : ops) {
+            op.addTo(stats);
+        }
+    }
+
+    // one line per group (the part of the name before the first dot), e.g. "get calls=52311 errors=0 ... p99Us=412"
+    public static void dump(Map<String, Long> stats) {
+        Map<String, StringBuilder> groups = new LinkedHashMap<String, StringBuilder>();
+        for (Map.Entry<String, Long> e : stats.entrySet()) {
+            int dot = e.getKey().indexOf('.');
+            String group = (dot < 0) ? "" : e.getKey().substring(0, dot);
+            groups.computeIfAbsent(group, g -> new StringBuilder("\n  ").append(g))
+                .append(' ').append(e.getKey().substring(dot + 1)).append('=').append(e.getValue());
+        }
+        StringBuilder sb = new StringBuilder("stats:");
+        for (StringBuilder line : groups.values()) {
+            sb.append(line);
+        }
+        log.info(sb.toString());
+    }
+}
@@ -0,0 +1,178 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Client side cache of values read from one primary/backup group (KeyValueClient.setNearCache)
+ *
+ * ... every entry carries the sequence number of the write that produced it. A thread in KeyValueClient long-polls the
+ * primary (awaitInvalidations) for the keys written since the last answer and drops every entry that is older than the
+ * write; entries are evicted least recently used once a segment is full.
+ *
+ * Bounded staleness, not linearizability: a hit is only served while the last answer of the primary is at most
+ * maxStaleMs old (counted from when that poll was sent, the answer covers every write acknowledged before that).
+ * So a cached read can miss a write for at most maxStaleMs; when the primary can't be polled (failover), every read
+ * goes to the servers until a new primary answers, and a new primary always resets the cache first.
+ *
+ * A read that misses fills the cache in two steps: startFill puts a placeholder before the RPC and fill replaces it
+ * with the value only if nothing invalidated the key in between. The value comes from the primary, which applies
+ * a write before it is reported, so an invalidation that got here before the placeholder can't be older than the
+ * value we read.
+ */
+public class NearCache {
+    private Segment[] segments;
+    private int segmentMask;
+    private long maxStaleNanos;
+    private volatile long freshAsOf;                // System.nanoTime() when the last answered poll was sent, 0 = never
+
+    // counters, see addStats
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder staleMisses = new LongAdder();        // misses because the cache wasn't fresh, not because the key wasn't there
+    private LongAdder invalidations = new LongAdder();      // entries (or fills) dropped because their key was written
+    private LongAdder evictions = new LongAdder();
+    private LongAdder resets = new LongAdder();
+
+    static final class Entry {
+        final String value;                         // null = a fill is in progress
+        final int seq;
+
+        Entry(String value, int seq) {
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+
+    public NearCache(int maxEntries, long maxStaleMs) {
+        int n = Integer.highestOneBit(Math.max(1, Math.min(16, maxEntries / 64) - 1)) << 1;
+        this.segments = new Segment[n];
+        this.segmentMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / n));
+        }
+        this.maxStaleNanos = TimeUnit.MILLISECONDS.toNanos(maxStaleMs);
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & segmentMask];
+    }
+
+    public long getMaxStaleMs() {
+        return TimeUnit.NANOSECONDS.toMillis(maxStaleNanos);
+    }
+
+    // the cached value, or null if the key isn't cached or the cache is too stale to answer
+    public String get(String key) {
+        long asOf = freshAsOf;
+        if (asOf == 0 || System.nanoTime() - asOf > maxStaleNanos) {
+            staleMisses.increment();
+            misses.increment();
+            return null;
+        }
+        Segment s = segmentFor(key);
+        Entry e;
+        synchronized (s) {
+            e = s.get(key);
+        }
+        if (e == null || e.value == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return e.value;
+    }
+
+    // before reading key from the primary; pass the returned token to fill
+    public Object startFill(String key) {
+        Entry placeholder = new Entry(null, 0);
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            s.put(key, placeholder);
+        }
+        return placeholder;
+    }
+
+    // the read of startFill is back: cache it, unless the key was invalidated (or the cache reset) meanwhile
+    public void fill(String key, Object token, String value, int seq) {
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            if (s.get(key) == token) {
+                s.put(key, new Entry(value, seq));
+            }
+        }
+    }
+
+    // key was written with sequence seq: drop the entry if it is older, and any fill in progress
+    public void invalidate(String key, int seq) {
+        Segment s = segmentFor(key);
+        synchronized (s) {
+            Entry e = s.get(key);
+            if (e != null && (e.value == null || e.seq < seq)) {
+                s.remove(key);
+                invalidations.increment();
+            }
+        }
+    }
+
+    // a poll sent at sentNanos was answered and applied, every write acknowledged before then is reflected
+    public void markFresh(long sentNanos) {
+        freshAsOf = sentNanos;
+    }
+
+    // drop everything, including fills in progress (new primary, or it lost track of what we have)
+    public void clear() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+        resets.increment();
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                n += s.size();
+            }
+        }
+        return n;
+    }
+
+    // prefix.hits, misses (staleMisses of them because the last poll was too old), hitRatioPct, invalidations, ...
+    public void addStats(Map<String, Long> stats, String prefix) {
+        long h = hits.sum();
+        long m = misses.sum();
+        long asOf = freshAsOf;
+        stats.put(prefix + ".entries", (long) size());
+        stats.put(prefix + ".hits", h);
+        stats.put(prefix + ".misses", m);
+        stats.put(prefix + ".staleMisses", staleMisses.sum());
+        stats.put(prefix + ".hitRatioPct", (h + m == 0) ? 0 : h * 100 / (h + m));
+        stats.put(prefix + ".invalidations", invalidations.sum());
+        stats.put(prefix + ".evictions", evictions.sum());
+        stats.put(prefix + ".resets", resets.sum());
+        stats.put(prefix + ".ageMs", (asOf == 0) ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - asOf));
+    }
+
+    // LRU: access ordered, the eldest entry goes when the segment is full
+    final class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;  // LinkedHashMap is Serializable, a segment is never serialized
+
+        final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
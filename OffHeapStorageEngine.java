@@ -0,0 +1,407 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/*
+ * Storage engine that keeps keys and values outside the Java heap
+ *
+ * ... a ConcurrentHashMap<String, String> entry costs a node object plus two Strings and their byte arrays, with ~50M
+ * entries that is a lot of old-gen objects for the GC to trace. Here every entry is one record appended to a direct
+ * ByteBuffer arena:
+ *
+ *   [int keyLen][int valueLen][key utf8][value utf8]
+ *
+ * and found through an open-addressing (linear probing) index made of three primitive arrays: the key's hash, the
+ * record's address and the entry's sequence number. So the heap only holds a few big arrays per segment, no matter
+ * how many entries there are, and comparing sequence numbers never touches the arena.
+ *
+ * The engine is split into segments by hash, each with its own read/write lock, arenas and index. A put never
+ * overwrites a record in place: it appends a new one and repoints the index, the old record becomes garbage.
+ * When a segment's garbage outgrows its live data, the segment copies its live records into fresh arenas.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+    static final int MIN_ARENA = 1 << 20;
+    static final int MAX_ARENA = 64 << 20;
+    static final float LOAD_FACTOR = 0.7f;
+
+    private Segment[] segments;
+    private int segmentMask;
+    private Snapshot.Registry snapshots = new Snapshot.Registry(this);
+
+    public OffHeapStorageEngine(int numSegments) {
+        int n = Integer.highestOneBit(Math.max(1, numSegments - 1)) << 1;
+        this.segments = new Segment[n];
+        this.segmentMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[(h >>> 24) & segmentMask];
+    }
+
+    public String get(String key) {
+        int h = hash(key);
+        Segment s = segmentFor(h);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        s.lock.readLock().lock();
+        try {
+            int i = s.find(k, h);
+            return (i < 0) ? null : s.readValue(s.addrs[i]);
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    public String get(String key, int[] seq) {
+        int h = hash(key);
+        Segment s = segmentFor(h);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        s.lock.readLock().lock();
+        try {
+            int i = s.find(k, h);
+            if (i < 0) {
+                return null;
+            }
+            seq[0] = s.seqs[i];
+            return s.readValue(s.addrs[i]);
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    public int put(String key, String value, IntSupplier nextSeq) {
+        int h = hash(key);
+        Segment s = segmentFor(h);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        s.lock.writeLock().lock();
+        try {
+            int seq = nextSeq.getAsInt();
+            int i = s.find(k, h);
+            if (i >= 0 && !snapshots.isEmpty()) {
+                snapshots.overwriting(key, s.readValue(s.addrs[i]), s.seqs[i], seq);
+            }
+            s.put(k, v, h, i, seq);
+            return seq;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    public int update(String key, UnaryOperator<String> update, IntSupplier nextSeq) {
+        int h = hash(key);
+        Segment s = segmentFor(h);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        s.lock.writeLock().lock();
+        try {
+            int i = s.find(k, h);
+            String cur = (i < 0) ? null : s.readValue(s.addrs[i]);
+            String next = update.apply(cur);
+            if (next == null) {
+                return 0;
+            }
+            int seq = nextSeq.getAsInt();
+            if (cur != null) {
+                snapshots.overwriting(key, cur, s.seqs[i], seq);
+            }
+            s.put(k, next.getBytes(StandardCharsets.UTF_8), h, i, seq);
+            return seq;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    public boolean putIfNewer(String key, String value, int seq, boolean strict) {
+        int h = hash(key);
+        Segment s = segmentFor(h);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        s.lock.writeLock().lock();
+        try {
+            int i = s.find(k, h);
+            if (i >= 0 && (strict ? seq <= s.seqs[i] : seq < s.seqs[i])) {
+                return false;
+            }
+            if (i >= 0 && !snapshots.isEmpty()) {
+                snapshots.overwriting(key, s.readValue(s.addrs[i]), s.seqs[i], seq);
+            }
+            s.put(k, value.getBytes(StandardCharsets.UTF_8), h, i, seq);
+            return true;
+        } finally {
+            s.lock.writeLock().unlock();
+        }
+    }
+
+    public boolean containsKey(String key) {
+        int h = hash(key);
+        Segment s = segmentFor(h);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        s.lock.readLock().lock();
+        try {
+            return s.find(k, h) >= 0;
+        } finally {
+            s.lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            n += s.count;
+        }
+        return n;
+    }
+
+    public void clear() {
+        snapshots.invalidate();
+        for (Segment s : segments) {
+            s.lock.writeLock().lock();
+            try {
+                s.reset();
+            } finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    public Snapshot snapshot(IntSupplier lastSeq) {
+        return snapshots.open(lastSeq);
+    }
+
+    /*
+     * entries are decoded a slice of the index at a time under the read lock, and visited without holding it,
+     * so a slow visitor (e.g. a snapshot transfer waiting on the network) doesn't block writers
+     * if the index was resized in the meantime, the segment is walked again from the start (entries may be seen twice,
+     * but none that existed before the walk is missed)
+     */
+    public void forEach(EntryVisitor visitor) {
+        List<String> keys = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        int[] seqs = new int[1024];
+        for (Segment s : segments) {
+            int slot = 0;
+            int epoch = -1;
+            while (true) {
+                keys.clear();
+                values.clear();
+                s.lock.readLock().lock();
+                try {
+                    if (epoch != -1 && epoch != s.resizes) {
+                        slot = 0;
+                    }
+                    epoch = s.resizes;
+                    int end = Math.min(s.addrs.length, slot + 1024);
+                    for (; slot < end; slot++) {
+                        long addr = s.addrs[slot];
+                        if (addr != 0) {
+                            seqs[keys.size()] = s.seqs[slot];
+                            keys.add(s.readKey(addr));
+                            values.add(s.readValue(addr));
+                        }
+                    }
+                } finally {
+                    s.lock.readLock().unlock();
+                }
+                for (int i = 0; i < keys.size(); i++) {
+                    if (!visitor.visit(keys.get(i), values.get(i), seqs[i])) {
+                        return;
+                    }
+                }
+                if (slot >= s.addrs.length) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public long offHeapBytes() {
+        long n = 0;
+        for (Segment s : segments) {
+            n += s.arenaBytes;
+        }
+        return n;
+    }
+
+    static class Segment {
+        ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        // index: slot i is empty if addrs[i] == 0
+        int[] hashes;
+        long[] addrs;
+        int[] seqs;
+        int count;
+        int resizes;
+
+        // arenas: address = (arena number + 1) << 32 | offset in arena
+        List<ByteBuffer> arenas;
+        ByteBuffer current;
+        long arenaBytes;
+        long liveBytes;
+        long garbageBytes;
+
+        Segment() {
+            reset();
+        }
+
+        void reset() {
+            hashes = new int[16];
+            addrs = new long[16];
+            seqs = new int[16];
+            count = 0;
+            arenas = new ArrayList<ByteBuffer>();
+            current = null;
+            arenaBytes = 0;
+            liveBytes = 0;
+            garbageBytes = 0;
+        }
+
+        // slot of the key, or -(insertion slot) - 1 if it is not there
+        int find(byte[] key, int h) {
+            int mask = addrs.length - 1;
+            int i = h & mask;
+            while (true) {
+                long addr = addrs[i];
+                if (addr == 0) {
+                    return -i - 1;
+                }
+                if (hashes[i] == h && keyEquals(addr, key)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        // i = result of find(key, h)
+        void put(byte[] key, byte[] value, int h, int i, int seq) {
+            long addr = append(key, value);
+            if (i >= 0) {
+                int old = recordSize(addrs[i]);
+                garbageBytes += old;
+                liveBytes -= old;
+                addrs[i] = addr;
+                seqs[i] = seq;
+            } else {
+                i = -i - 1;
+                hashes[i] = h;
+                addrs[i] = addr;
+                seqs[i] = seq;
+                count++;
+                if (count > addrs.length * LOAD_FACTOR) {
+                    resize();
+                }
+            }
+            liveBytes += 8 + key.length + value.length;
+            if (garbageBytes > MIN_ARENA && garbageBytes > liveBytes) {
+                compact();
+            }
+        }
+
+        long append(byte[] key, byte[] value) {
+            int size = 8 + key.length + value.length;
+            if (current == null || current.remaining() < size) {
+                int last = (current == null) ? MIN_ARENA / 2 : current.capacity();
+                int cap = Math.max(size, Math.min(MAX_ARENA, last * 2));
+                current = ByteBuffer.allocateDirect(cap);
+                arenas.add(current);
+                arenaBytes += cap;
+            }
+            int offset = current.position();
+            current.putInt(key.length).putInt(value.length).put(key).put(value);
+            return ((long) arenas.size() << 32) | offset;
+        }
+
+        void resize() {
+            int[] oldHashes = hashes;
+            long[] oldAddrs = addrs;
+            int[] oldSeqs = seqs;
+            hashes = new int[oldAddrs.length * 2];
+            addrs = new long[oldAddrs.length * 2];
+            seqs = new int[oldAddrs.length * 2];
+            int mask = addrs.length - 1;
+            for (int j = 0; j < oldAddrs.length; j++) {
+                if (oldAddrs[j] != 0) {
+                    int i = oldHashes[j] & mask;
+                    while (addrs[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    hashes[i] = oldHashes[j];
+                    addrs[i] = oldAddrs[j];
+                    seqs[i] = oldSeqs[j];
+                }
+            }
+            resizes++;
+        }
+
+        // copy the live records into fresh arenas, the old ones are freed when the GC collects their ByteBuffers
+        void compact() {
+            List<ByteBuffer> oldArenas = arenas;
+            arenas = new ArrayList<ByteBuffer>();
+            current = null;
+            arenaBytes = 0;
+            for (int i = 0; i < addrs.length; i++) {
+                if (addrs[i] != 0) {
+                    ByteBuffer arena = oldArenas.get((int) (addrs[i] >>> 32) - 1);
+                    int offset = (int) addrs[i];
+                    addrs[i] = append(bytes(arena, offset + 8, arena.getInt(offset)),
+                        bytes(arena, offset + 8 + arena.getInt(offset), arena.getInt(offset + 4)));
+                }
+            }
+            garbageBytes = 0;
+        }
+
+        ByteBuffer arena(long addr) {
+            return arenas.get((int) (addr >>> 32) - 1);
+        }
+
+        int recordSize(long addr) {
+            ByteBuffer arena = arena(addr);
+            int offset = (int) addr;
+            return 8 + arena.getInt(offset) + arena.getInt(offset + 4);
+        }
+
+        boolean keyEquals(long addr, byte[] key) {
+            ByteBuffer arena = arena(addr);
+            int offset = (int) addr;
+            if (arena.getInt(offset) != key.length) {
+                return false;
+            }
+            for (int j = 0; j < key.length; j++) {
+                if (arena.get(offset + 8 + j) != key[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String readKey(long addr) {
+            ByteBuffer arena = arena(addr);
+            int offset = (int) addr;
+            return new String(bytes(arena, offset + 8, arena.getInt(offset)), StandardCharsets.UTF_8);
+        }
+
+        String readValue(long addr) {
+            ByteBuffer arena = arena(addr);
+            int offset = (int) addr;
+            int keyLen = arena.getInt(offset);
+            return new String(bytes(arena, offset + 8 + keyLen, arena.getInt(offset + 4)), StandardCharsets.UTF_8);
+        }
+
+        static byte[] bytes(ByteBuffer arena, int offset, int length) {
+            byte[] b = new byte[length];
+            ByteBuffer dup = arena.duplicate();
+            dup.position(offset);
+            dup.get(b);
+            return b;
+        }
+    }
+}
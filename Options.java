@@ -0,0 +1,63 @@
+import java.util.*;
+
+/*
+ * Small helper for the command line of our programs:
+ * positional arguments stay in order, optional flags are written as --name=value (or just --name for true)
+ *
+ * e.g. java A3Client manta.uwaterloo.ca:2181 /m3pavlov 4 10 1000 --batch=100
+ */
+public class Options {
+    private List<String> positional = new ArrayList<>();
+    private Map<String, String> flags = new HashMap<>();
+
+    public Options(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                int eq = arg.indexOf('=');
+                if (eq < 0) {
+                    flags.put(arg.substring(2), "true");
+                } else {
+                    flags.put(arg.substring(2, eq), arg.substring(eq + 1));
+                }
+            } else {
+                positional.add(arg);
+            }
+        }
+    }
+
+    public int numPositional() {
+        return positional.size();
+    }
+
+    public String get(int i) {
+        return positional.get(i);
+    }
+
+    public boolean has(String name) {
+        return flags.containsKey(name);
+    }
+
+    public String getString(String name, String defaultValue) {
+        String value = flags.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = flags.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    public long getLong(String name, long defaultValue) {
+        String value = flags.get(name);
+        return (value == null) ? defaultValue : Long.parseLong(value);
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        String value = flags.get(name);
+        return (value == null) ? defaultValue : Double.parseDouble(value);
+    }
+
+    public boolean getBoolean(String name) {
+        return Boolean.parseBoolean(flags.getOrDefault(name, "false"));
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/*
+ * An ordered index of the keys on top of any storage engine, for range scans (--index=ordered, KeyValueHandler.scan)
+ *
+ * ... the engines are hash maps, which can't list the keys between two keys without looking at all of them. This
+ * wrapper keeps every key in a ConcurrentSkipListSet as well (lock free, sorted by String.compareTo), the values stay
+ * where they are; a scan walks the set and looks each value up in the engine.
+ *
+ * The index is maintained inside the engine calls, so it is updated on every path a write takes to any node:
+ * client puts on the primary, forwards and snapshot chunks on the backup, WAL replay. A key goes into the set before
+ * its value goes into the engine, so a scan never misses a key whose write has completed (keys are never removed,
+ * except by clear; a write that overlaps a clear indexes its key again afterwards, see put). Every node of a group needs the flag, a backup that may serve a scan must have the index too.
+ *
+ * The index costs a skip list node per key on the heap (also with the off-heap engine) and an O(log n) insert per put.
+ */
+public class OrderedIndex implements StorageEngine {
+    private StorageEngine map;
+    private ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<String>();
+    private LongAdder indexed = new LongAdder();        // keys.size() walks the whole list
+    private volatile int clears;                        // odd while clear() runs
+
+    public OrderedIndex(StorageEngine map) {
+        this.map = map;
+    }
+
+    /*
+     * the keys in [fromKey, toKey) in order, starting after `after` if it isn't null; toKey = null for no upper bound
+     * a live view, weakly consistent with concurrent writes like the engine's forEach
+     */
+    public NavigableSet<String> range(String fromKey, String toKey, String after) {
+        if (toKey != null && (fromKey.compareTo(toKey) >= 0 || (after != null && after.compareTo(toKey) >= 0))) {
+            return Collections.emptyNavigableSet();     // the views below would throw
+        }
+        NavigableSet<String> r = (toKey == null) ? keys.tailSet(fromKey, true) : keys.subSet(fromKey, true, toKey, false);
+        if (after != null && after.compareTo(fromKey) >= 0) {
+            r = r.tailSet(after, false);
+        }
+        return r;
+    }
+
+    public String get(String key) {
+        return map.get(key);
+    }
+
+    public String get(String key, int[] seq) {
+        return map.get(key, seq);
+    }
+
+    // most puts overwrite a key we already have: a hash lookup in the engine is much cheaper than a skip list search
+    private void index(String key) {
+        if (!map.containsKey(key) && keys.add(key)) {
+            indexed.increment();
+        }
+    }
+
+    /*
+     * a clear() that runs while we write can undo index(key) (keys.clear after our add, or map.clear before the write
+     * while index saw the old key and skipped the add) and still leave our value in the engine: then nothing would ever
+     * index the key. So if a clear ran or was running since we started, add the key again now that the value is in;
+     * a clear that starts after this check removes the value too.
+     */
+    private void indexAgain(String key, int clearsBefore) {
+        if ((clearsBefore & 1) != 0 || clears != clearsBefore) {
+            if (keys.add(key)) {
+                indexed.increment();
+            }
+        }
+    }
+
+    public int put(String key, String value, IntSupplier nextSeq) {
+        int c = clears;
+        index(key);
+        int seq = map.put(key, value, nextSeq);
+        indexAgain(key, c);
+        return seq;
+    }
+
+    public int update(String key, UnaryOperator<String> update, IntSupplier nextSeq) {
+        int c = clears;
+        index(key);                                     // may index a key that ends up not written, scan skips it
+        int seq = map.update(key, update, nextSeq);
+        indexAgain(key, c);
+        return seq;
+    }
+
+    public boolean putIfNewer(String key, String value, int seq, boolean strict) {
+        int c = clears;
+        index(key);
+        boolean written = map.putIfNewer(key, value, seq, strict);
+        indexAgain(key, c);
+        return written;
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    // the index first: a key can be in the index without a value (scan skips it), the other way round it is lost
+    public synchronized void clear() {                  // writes never take the monitor, it only keeps clears odd/even
+        clears++;
+        keys.clear();
+        indexed.reset();
+        map.clear();
+        clears++;
+    }
+
+    public void forEach(EntryVisitor visitor) {
+        map.forEach(visitor);
+    }
+
+    // the engine's snapshot: it walks the engine like forEach does, in hash order
+    public Snapshot snapshot(IntSupplier lastSeq) {
+        return map.snapshot(lastSeq);
+    }
+
+    public long offHeapBytes() {
+        return map.offHeapBytes();
+    }
+
+    public void addStats(Map<String, Long> stats, String prefix) {
+        map.addStats(stats, prefix);
+        stats.put(prefix + ".indexedKeys", indexed.sum());
+    }
+}
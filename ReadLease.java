@@ -0,0 +1,178 @@
+import java.util.concurrent.*;
+
+/*
+ * Read lease that lets the BACKUP answer get without breaking linearizability
+ *
+ * ... the backup asks the primary for the lease (requestLease) every leaseMs / 4. It notes the time t0 BEFORE sending
+ * the request and, if the primary says yes, serves reads until t0 + leaseMs. The primary grants at some time t1 >= t0
+ * and counts the lease as held until t1 + leaseMs (+ 10% for clock rate drift), so no matter how long the request
+ * or the answer spends on the wire, the backup always stops serving before the primary thinks the lease is over.
+ *
+ * Primary side rules:
+ *  - the lease is only granted to the current backup once it has the full data set (after joinAsBackup)
+ *  - once the backup is dropped (failure, or ServerWatcher says we're alone) granting stops, and every write waits
+ *    until the last lease it handed out has run out before it is acknowledged, so a cut-off backup can't serve
+ *    a value older than an acknowledged write
+ *  - a get on the primary for a key whose write is not yet acknowledged by the backup waits for that ack, so a reader
+ *    can't see a value on the primary and then the older one on the backup
+ *
+ * leaseMs = 0 turns all of this off (the backup refuses gets, nothing waits).
+ */
+public class ReadLease {
+    private long leaseMs;
+    private long holdNanos;                         // how long the primary counts a grant as held: leaseMs + 10%
+
+    // primary side
+    private volatile boolean granting;
+    private volatile long heldUntil;                // System.nanoTime() until which the backup may still serve reads
+    private ConcurrentHashMap<String, CountDownLatch> unacked = new ConcurrentHashMap<String, CountDownLatch>();
+
+    // backup side
+    private volatile long expiresAt;                // System.nanoTime() until which we may serve reads, 0 = no lease
+    private long epoch;                             // bumped by drop(), so an answer to an older request is ignored
+
+    public ReadLease(long leaseMs) {
+        this.leaseMs = leaseMs;
+        this.holdNanos = TimeUnit.MILLISECONDS.toNanos(leaseMs + leaseMs / 10);
+    }
+
+    public boolean isEnabled() {
+        return leaseMs > 0;
+    }
+
+    public long getLeaseMs() {
+        return leaseMs;
+    }
+
+    /*
+     * primary side
+     */
+
+    // returns the lease length granted, 0 if we're not granting right now
+    public synchronized long grant() {
+        if (!granting) {
+            return 0;
+        }
+        heldUntil = Math.max(heldUntil, System.nanoTime() + holdNanos);
+        return leaseMs;
+    }
+
+    // called once the backup has the whole data set, `stillPaired` is checked under the same lock as stop()
+    public synchronized void start(java.util.function.BooleanSupplier stillPaired) {
+        if (isEnabled() && stillPaired.getAsBoolean()) {
+            granting = true;
+        }
+    }
+
+    // stop granting, then run `then` (e.g. isAlone = true) so whoever sees its effect also sees granting == false
+    public synchronized void stop(Runnable then) {
+        granting = false;
+        then.run();
+    }
+
+    // before acknowledging a write: if the lease holder may not have it, wait until its lease is over
+    public void awaitWritable() {
+        if (granting) {
+            return;
+        }
+        long wait = heldUntil - System.nanoTime();
+        while (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            wait = heldUntil - System.nanoTime();
+        }
+    }
+
+    // the latch of one write, remembers the one it replaced in `unacked` until it is acknowledged itself
+    static final class Token extends CountDownLatch {
+        volatile CountDownLatch displaced;
+
+        Token() {
+            super(1);
+        }
+    }
+
+    // a write to key is in the map but not yet acknowledged; returns the token to pass to acked(), null if leases are off
+    public CountDownLatch writing(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Token latch = new Token();
+        latch.displaced = unacked.put(key, latch);
+        return latch;
+    }
+
+    public void acked(String key, CountDownLatch latch) {
+        if (latch != null) {
+            unacked.remove(key, latch);
+            ((Token) latch).displaced = null;
+            latch.countDown();
+        }
+    }
+
+    /*
+     * a read-modify-write (compareAndSet) that called writing() and then didn't write after all: the write we displaced
+     * goes back in place for later gets, and we wait for it, because the caller's answer depends on the value it wrote
+     */
+    public void withdrawn(String key, CountDownLatch latch) {
+        if (latch == null) {
+            return;
+        }
+        CountDownLatch displaced = ((Token) latch).displaced;
+        if (displaced != null && displaced.getCount() > 0) {
+            unacked.replace(key, latch, displaced);
+        } else {
+            unacked.remove(key, latch);
+        }
+        acked(key, latch);
+        awaitLatch(displaced);
+    }
+
+    // primary get: wait for the latest write to key (if any) to be acknowledged
+    public void awaitAcked(String key) {
+        if (!isEnabled()) {
+            return;
+        }
+        awaitLatch(unacked.get(key));
+    }
+
+    private static void awaitLatch(CountDownLatch latch) {
+        if (latch != null) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * backup side
+     */
+
+    // call before sending a request, pass the result to granted()
+    public synchronized long[] requesting() {
+        return new long[] { System.nanoTime(), epoch };
+    }
+
+    public synchronized void granted(long[] request, long grantedMs) {
+        if (grantedMs > 0 && request[1] == epoch) {
+            expiresAt = request[0] + TimeUnit.MILLISECONDS.toNanos(grantedMs);
+        }
+    }
+
+    public boolean isHeld() {
+        long e = expiresAt;
+        return e != 0 && System.nanoTime() - e < 0;
+    }
+
+    // stop serving reads right away (our data is about to be replaced)
+    public synchronized void drop() {
+        epoch++;
+        expiresAt = 0;
+    }
+}
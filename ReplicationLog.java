@@ -0,0 +1,171 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The purpose of this class is to remember the most recent writes on the PRIMARY, so a BACKUP that comes back after
+ * a short absence only gets the writes it missed instead of the whole data set
+ *
+ * ... it is a ring buffer indexed by requestSeq: the write with sequence s lives in slot s % capacity until it is
+ * overwritten by write s + capacity. Every primary term gets a fresh random logId, sequences are only comparable
+ * within one log, so a node that followed some other primary always gets a full snapshot.
+ *
+ * The same log tells near-caching clients which keys changed (KeyValueHandler.awaitInvalidations): a long poll waits
+ * in awaitAppend for the next write.
+ */
+public class ReplicationLog {
+    private AtomicReferenceArray<Entry> ring;
+    private int mask;
+    private volatile long logId;
+    private volatile int startSeq;                  // writes with a sequence <= startSeq were never in this log
+    private final ReentrantLock appendLock = new ReentrantLock();  // not a monitor, a virtual thread can park on it
+    private final Condition appended = appendLock.newCondition();
+    private volatile int waiters;                   // threads in awaitAppend, append only wakes them up if there are any
+
+    static class Entry {
+        final int seq;
+        final String key;
+        final String value;
+
+        Entry(int seq, String key, String value) {
+            this.seq = seq;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    public ReplicationLog(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;       // round up to a power of two
+        this.ring = new AtomicReferenceArray<Entry>(size);
+        this.mask = size - 1;
+        this.logId = 0;
+        this.startSeq = Integer.MAX_VALUE;
+    }
+
+    // start a new log (new primary term), everything up to startSeq is only available through a full snapshot
+    public synchronized void reset(int startSeq) {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+        this.startSeq = startSeq;
+        this.logId = new Random().nextLong() & Long.MAX_VALUE;
+    }
+
+    // chain replication: a node in the middle of the chain keeps the head's log (same logId, same sequences), so the
+    // node after it can rejoin with only the writes it missed
+    public synchronized void follow(long logId, int startSeq) {
+        for (int i = 0; i < ring.length(); i++) {
+            ring.set(i, null);
+        }
+        this.startSeq = startSeq;
+        this.logId = logId;
+    }
+
+    public long getLogId() {
+        return logId;
+    }
+
+    public void append(int seq, String key, String value) {
+        ring.set(seq & mask, new Entry(seq, key, value));
+        if (waiters > 0) {
+            appendLock.lock();
+            try {
+                appended.signalAll();
+            } finally {
+                appendLock.unlock();
+            }
+        }
+    }
+
+    // wait up to ms for the write after afterSeq to be appended (returns early if the log is reset meanwhile)
+    public void awaitAppend(long forLogId, int afterSeq, long ms) {
+        long left = TimeUnit.MILLISECONDS.toNanos(ms);
+        appendLock.lock();
+        waiters++;
+        try {
+            while (forLogId == logId && left > 0) {
+                Entry e = ring.get((afterSeq + 1) & mask);
+                if (e != null && e.seq > afterSeq) {
+                    return;
+                }
+                left = appended.awaitNanos(left);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiters--;
+            appendLock.unlock();
+        }
+    }
+
+    /*
+     * the writes with sequence in (afterSeq, uptoSeq], or null if some of them are no longer in the log
+     * a sequence can be handed out a moment before its write is appended, so we wait (briefly) for missing slots
+     */
+    public List<Entry> read(long forLogId, int afterSeq, int uptoSeq) {
+        if (forLogId != logId || afterSeq < startSeq || uptoSeq - afterSeq > ring.length()) {
+            return null;
+        }
+        List<Entry> ret = new ArrayList<Entry>(Math.max(0, uptoSeq - afterSeq));
+        for (int s = afterSeq + 1; s <= uptoSeq; s++) {
+            long deadline = System.nanoTime() + 1000000000L;
+            Entry e = ring.get(s & mask);
+            while (e == null || e.seq < s) {
+                if (System.nanoTime() > deadline || forLogId != logId) {
+                    return null;
+                }
+                Thread.yield();
+                e = ring.get(s & mask);
+            }
+            if (e.seq != s) {
+                return null;                                    // already overwritten by a newer write: truncated
+            }
+            ret.add(e);
+        }
+        return ret;
+    }
+
+    /*
+     * from POV of backup node: the highest sequence such that every write up to it has been applied here
+     * (frames can arrive out of order, so we keep the ones above the gap until the gap is filled)
+     */
+    public static class Watermark {
+        private int watermark = -1;                              // -1 = unknown, we need a full snapshot
+        private TreeSet<Integer> above = new TreeSet<Integer>();
+        private static final int MAX_ABOVE = 1 << 20;
+
+        public synchronized void reset(int baseSeq) {
+            watermark = baseSeq;
+            above.headSet(baseSeq, true).clear();
+            advance();
+        }
+
+        public synchronized void applied(List<Integer> sequences) {
+            for (int seq : sequences) {
+                if (seq > watermark) {
+                    above.add(seq);
+                }
+            }
+            advance();
+            if (above.size() > MAX_ABOVE) {                      // a gap that will never close, forget what we know
+                watermark = -1;
+                above.clear();
+            }
+        }
+
+        private void advance() {
+            if (watermark < 0) {
+                return;
+            }
+            while (!above.isEmpty() && above.first() == watermark + 1) {
+                watermark = above.pollFirst();
+            }
+        }
+
+        public synchronized int get() {
+            return watermark;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The purpose of this class is to replicate PUT operations from the PRIMARY to the BACKUP without doing
+ * one synchronous forwardRequest RPC per client put
+ *
+ * ... client puts are queued here, and a small set of sender threads drains the queue into frames:
+ * every sender takes whatever has piled up (up to maxFrameSize writes), ships it with a single forwardBatch RPC
+ * and only then releases the client threads that were waiting on that frame (group commit)
+ *
+ * With numSenders senders we have up to numSenders frames in flight at the same time, so the more clients are
+ * writing concurrently, the more writes ride in each frame. The backup applies every write by its sequence
+ * number, so frames that overtake each other on the wire can't roll a key back to an older value.
+ *
+ * A put is acknowledged to the client only after its frame is acknowledged by the backup -> still linearizable
+ *
+ * With chain replication every node in the chain has one of these towards the next node, and forwardBatch on a middle
+ * node only returns once its own frame is acked, so the ack travels back from the tail. A frame that fails there is
+ * retried until the chain is repaired instead of being given up (see KeyValueHandler.configureChain).
+ */
+public class ReplicationPipeline {
+    private KeyValueHandler handler;
+    private LinkedBlockingQueue<Pending> queue;
+    private int numSenders;
+    private int maxFrameSize;
+    private AtomicLong frameSeq;                    // frames are numbered in the order they are cut from the queue
+    private AtomicInteger ackedSeq;                 // highest sequence number the backup has acked
+    private Metrics.Op frameStats;                  // one call per frame: forwardBatch round trip, payload bytes
+
+    // one or more writes that a client thread is waiting on (one for put, the whole batch for multiPut)
+    static class Pending {
+        List<String> keys;
+        List<String> values;
+        List<Integer> sequences;
+        CountDownLatch acked = new CountDownLatch(1);
+
+        Pending(List<String> keys, List<String> values, List<Integer> sequences) {
+            this.keys = keys;
+            this.values = values;
+            this.sequences = sequences;
+        }
+    }
+
+    public ReplicationPipeline(KeyValueHandler handler, int numSenders, int maxFrameSize) {
+        this(handler, numSenders, maxFrameSize, null);
+    }
+
+    // senderThreads = where the senders run, null = platform threads (virtual ones make many frames in flight cheap)
+    public ReplicationPipeline(KeyValueHandler handler, int numSenders, int maxFrameSize, ThreadFactory senderThreads) {
+        this.handler = handler;
+        this.queue = new LinkedBlockingQueue<Pending>();
+        this.numSenders = numSenders;
+        this.maxFrameSize = maxFrameSize;
+        this.frameSeq = new AtomicLong(0);
+        this.ackedSeq = new AtomicInteger(0);
+        this.frameStats = handler.getMetrics().op("replication");
+
+        for (int i = 0; i < numSenders; i++) {
+            Runnable sender = new Runnable() {
+                public void run() {
+                    sendLoop();
+                }
+            };
+            Thread t = (senderThreads != null) ? senderThreads.newThread(sender) : new Thread(sender);
+            t.setName("replication-sender-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    // replicate a single put and block until the backup has it (or is declared dead)
+    public void replicate(String key, String value, int sequence) {
+        replicate(Collections.singletonList(key), Collections.singletonList(value), Collections.singletonList(sequence));
+    }
+
+    // replicate a batch of puts; they always travel in the same frame
+    public void replicate(List<String> keys, List<String> values, List<Integer> sequences) {
+        Pending p = new Pending(keys, values, sequences);
+        queue.add(p);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                p.acked.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // writes waiting for a sender
+    public int getQueued() {
+        return queue.size();
+    }
+
+    public int getAckedSeq() {
+        return ackedSeq.get();
+    }
+
+    // a new backup is caught up to baseSeq by a snapshot or a delta, not by frames
+    public void resetAckedSeq(int baseSeq) {
+        ackedSeq.set(baseSeq);
+    }
+
+    private void sendLoop() {
+        List<Pending> frame = new ArrayList<Pending>();
+        while (true) {
+            try {
+                frame.add(queue.take());                 // block until there is at least one write
+                int frameSize = frame.get(0).keys.size();
+                while (frameSize < maxFrameSize) {       // then coalesce whatever else is already waiting
+                    Pending next = queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    frame.add(next);
+                    frameSize += next.keys.size();
+                }
+                sendFrame(frame, frameSize);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                for (Pending p : frame) {
+                    p.acked.countDown();
+                }
+                frame.clear();
+            }
+        }
+    }
+
+    private void sendFrame(List<Pending> frame, int frameSize) {
+        long frameNum = frameSeq.incrementAndGet();
+        List<String> keys;
+        List<String> values;
+        List<Integer> sequences;
+        long bytes = 0;
+        if (frame.size() == 1) {
+            keys = frame.get(0).keys;
+            values = frame.get(0).values;
+            sequences = frame.get(0).sequences;
+        } else {
+            keys = new ArrayList<String>(frameSize);
+            values = new ArrayList<String>(frameSize);
+            sequences = new ArrayList<Integer>(frameSize);
+            for (Pending p : frame) {
+                keys.addAll(p.keys);
+                values.addAll(p.values);
+                sequences.addAll(p.sequences);
+            }
+        }
+
+        int maxSeq = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            bytes += keys.get(i).length() + values.get(i).length();
+            maxSeq = Math.max(maxSeq, sequences.get(i));
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            long start = System.nanoTime();
+            Connection connectionToBackup = null;
+            try {
+                connectionToBackup = handler.popBackupConnection();
+                FrameCodec codec = handler.getBackupCodec();
+                if (codec != null) {
+                    connectionToBackup.client.forwardCompressed(codec.encode(keys, values, sequences));
+                } else {
+                    connectionToBackup.client.forwardBatch(keys, values, sequences);
+                }
+                handler.addBackupConnection(connectionToBackup);
+                frameStats.record(start, 0, bytes);
+                ackedSeq.accumulateAndGet(maxSeq, Math::max);
+                return;
+            } catch (Exception e) {
+                frameStats.failed(start);
+                // same as before: if the backup is gone we carry on alone, ServerWatcher will bring in a new one
+                if (attempt == 0 || connectionToBackup != null) {
+                    handler.backupFailed(connectionToBackup);
+                }
+                if (!handler.isChain() || handler.get_isAlone()) {
+                    System.out.println("REPLICATION: frame #" + frameNum + " (" + frameSize + " writes) failed, continuing alone");
+                    e.printStackTrace();
+                    return;
+                }
+                // chain: the frame is only acked once the tail has it, so keep trying until our successor is replaced
+                // (the new one gets these writes again from the retry, it applies by sequence so twice is harmless)
+                // or ServerWatcher makes us the tail
+                if (attempt == 0) {
+                    System.out.println("REPLICATION: frame #" + frameNum + " (" + frameSize + " writes) failed, holding it until the chain is repaired");
+                }
+                try {
+                    Thread.sleep(Math.min(100, 1 << Math.min(attempt, 6)));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
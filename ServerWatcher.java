@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
 import org.apache.thrift.*;
@@ -20,6 +21,18 @@ import org.apache.log4j.*;
 import ca.uwaterloo.watca.ExecutionLogger;
 
 
+/*
+ * Decides whether this node is the PRIMARY, the BACKUP or a SPARE, and re-decides on every membership change
+ *
+ * ... the failover path is kept short:
+ *  - membership comes from one getChildren per event (no sync() first), and the "IP:port" of every member is cached,
+ *    a member's znode data never changes so it is read from ZooKeeper only once
+ *  - connections to the other members are opened as soon as they show up (peers pool) and reused for every ping,
+ *    a ping that gets no answer within pingTimeoutMs counts as a dead node
+ *  - identify() runs on its own thread; the ZooKeeper event thread only hands the event over, and events that arrive
+ *    while identify() is running are coalesced into one more run, which reads the latest membership anyway
+ *  - when the backup takes over, KeyValueHandler.promoted logs how long the group could not take writes
+ */
 public class ServerWatcher implements CuratorWatcher {
     
 	CuratorFramework curClient;
@@ -29,21 +42,54 @@ public class ServerWatcher implements CuratorWatcher {
 	String IP;
 	Integer Port;
 
+	ConcurrentHashMap<String, String> addresses = new ConcurrentHashMap<>();	// child name -> "IP:port"
+	Manager peers;															// pre-opened connections to the other members
+	int pingTimeoutMs;
+	ExecutorService events;													// identify() runs here, not on the ZooKeeper event thread
+	AtomicBoolean pending = new AtomicBoolean(false);
+	volatile long eventNanos;												// when the last membership change was reported
+	String predecessor;														// chain: the member we joined (forward writes to us)
+
 	// client constructor that is called in main()
     ServerWatcher(CuratorFramework curClient, KeyValueHandler ServiceHandler, String zkNode, String IP, Integer Port) {
+		this(curClient, ServiceHandler, zkNode, IP, Port, 500);
+    }
+
+	// pingTimeoutMs = connect and read timeout of a ping to another member
+    ServerWatcher(CuratorFramework curClient, KeyValueHandler ServiceHandler, String zkNode, String IP, Integer Port, int pingTimeoutMs) {
 		this.curClient = curClient; 
 		this.ServiceHandler = ServiceHandler;
 		this.zkNode = zkNode;
 		this.IP = IP;
 		this.Port = Port;
+		this.pingTimeoutMs = pingTimeoutMs;
+		this.peers = new Manager(2, pingTimeoutMs, 60000, pingTimeoutMs);
+		this.events = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "server-watcher");
+			t.setDaemon(true);
+			return t;
+		});
     }
 
     // method for self re-identification (who am I??) upong the occurence of the Watched Event (addition/deletion of a znode)
-	void identify() throws Exception {
+	synchronized void identify() throws Exception {
 		State current_state = ServiceHandler.getState();
-		curClient.sync();
-		List<String> children = curClient.getChildren().usingWatcher(this).forPath(zkNode);			// this sets the watch event -> will trigger whenever a znode is added/deleted
+		List<String> children = members();								// this sets the watch event -> will trigger whenever a znode is added/deleted
+
+		try {
+			if (ServiceHandler.isChain()) {
+				decideChain(current_state, children);
+			} else {
+				decide(current_state, children);
+			}
+		} finally {
+			if (current_state != State.PRIMARY && ServiceHandler.getState() == State.PRIMARY) {
+				ServiceHandler.promoted(current_state, eventNanos);
+			}
+		}
+	}
 
+	private void decide(State current_state, List<String> children) throws Exception {
 		if (children.size() == 1){										// ALONE
 			// System.out.println("WATCHER - IDENTIFY: children size = 1");
 			ServiceHandler.setState(State.PRIMARY);
@@ -72,9 +118,7 @@ public class ServerWatcher implements CuratorWatcher {
 
 
 				// extract the IP and Port# of the Head
-				byte[] data = curClient.getData().forPath(zkNode + "/" + children.get(0));
-				String strData = new String(data);
-				String[] primary = strData.split(":");
+				String[] primary = addressOf(children.get(0)).split(":");
 
 				if (IP.equals(primary[0]) && Port.equals(Integer.parseInt(primary[1]))){
 					// System.out.println("WATCHER: BACKUP - WE ARE THE HEAD");
@@ -84,17 +128,14 @@ public class ServerWatcher implements CuratorWatcher {
 				} else {
 					// System.out.println("WATCHER: BACKUP - WE ARE NOT THE HEAD");
 					// we are not the head
-					KeyValueService.Client connectionPRIMARY = getConnection(children.get(0));
-
 					try {
-						connectionPRIMARY.ping();
+						ping(children.get(0));
 					} catch (TException e) {
 						ServiceHandler.setState(State.PRIMARY);
 						if (children.size() < 3){
 							ServiceHandler.setIsAlone(true);
 						}
 					}
-					connectionPRIMARY.getOutputProtocol().getTransport().close();
 				}
 			} else if (current_state == State.SPARE) {
 
@@ -131,18 +172,12 @@ public class ServerWatcher implements CuratorWatcher {
 				*close connections
 				*/
 
-				KeyValueService.Client connectionPRIMARY = getConnection(children.get(0));
-				KeyValueService.Client connectionBACKUP = getConnection(children.get(1));
-				byte[] data = curClient.getData().forPath(zkNode + "/" + children.get(0));
-				String strData = new String(data);
-				String[] primary = strData.split(":");
-				
 				if (children.size() == 2){
 					// PING A
 					try {
-						if (connectionPRIMARY.ping()){
+						if (ping(children.get(0))){
 							ServiceHandler.setState(State.BACKUP);
-							connectionPRIMARY.completeDataTransfer(IP, Port);
+							join(children.get(0));
 						} else {
 							ServiceHandler.setState(State.PRIMARY);
 							ServiceHandler.setIsAlone(true);
@@ -154,55 +189,155 @@ public class ServerWatcher implements CuratorWatcher {
 				} else {	// if (children.size() == 3)
 					// PING A
 					try {
-						if (!connectionPRIMARY.ping()){
+						if (!ping(children.get(0))){
 							ServiceHandler.setState(State.BACKUP);
-							connectionBACKUP.completeDataTransfer(IP, Port);
+							join(children.get(1));
 						}
 					} catch (TException e) {
 						ServiceHandler.setState(State.BACKUP);
-						connectionBACKUP.completeDataTransfer(IP, Port);
+						join(children.get(1));
 					}
 
 					// PING B
 					try {
-						if (!connectionBACKUP.ping()){
+						if (!ping(children.get(1))){
 							ServiceHandler.setState(State.BACKUP);
-							connectionPRIMARY.completeDataTransfer(IP, Port);
+							join(children.get(0));
 						}
 					} catch (TException e) {
 						ServiceHandler.setState(State.BACKUP);
-						connectionPRIMARY.completeDataTransfer(IP, Port);
+						join(children.get(0));
 					}
 				}
+			}
+		}
+	}
+
 
-				connectionPRIMARY.getOutputProtocol().getTransport().close();
-				connectionBACKUP.getOutputProtocol().getTransport().close();
+	/*
+	 * chain replication: the first rf members in znode order form the chain, head first; everyone after them is a SPARE
+	 * every member joins the one before it (which then forwards writes to it), and the last one is the tail
+	 * when a member dies the one after it joins the one before it, the writes held up meanwhile are resent
+	 */
+	private void decideChain(State current_state, List<String> children) throws Exception {
+		int length = Math.min(ServiceHandler.getChainLength(), children.size());
+		int me = -1;
+		for (int i = 0; i < children.size(); i++) {
+			if (addressOf(children.get(i)).equals(IP + ":" + Port)) {
+				me = i;													// the newest one, in case an old znode of ours is still around
+			}
+		}
+		if (me < 0 || me >= length) {
+			return;														// SPARE, we only move up when someone in front of us dies
+		}
+
+		if (me == 0) {
+			ServiceHandler.setState(State.PRIMARY);
+			predecessor = null;
+		} else {
+			String pred = children.get(me - 1);
+			if (current_state != State.BACKUP || !pred.equals(predecessor)) {
+				ServiceHandler.setState(State.BACKUP);
+				predecessor = null;
+				join(pred);
+				predecessor = pred;
 			}
 		}
+		ServiceHandler.setIsAlone(me == length - 1);						// the tail has nobody to forward to, and answers reads
 	}
 
+	// sorted children of zkNode (sets the watch), with the address of every new member cached and a connection to it opened
+	List<String> members() throws Exception {
+		List<String> children = curClient.getChildren().usingWatcher(this).forPath(zkNode);
+		Collections.sort(children);
 
-	KeyValueService.Client getConnection(String child) throws Exception{
-		byte[] data = curClient.getData().forPath(zkNode + "/" + child);
-		String strData = new String(data);
-		String[] primary = strData.split(":");							// primary[0] = IP, primary[1] = port #			
+		for (String child : children) {
+			if (!addresses.containsKey(child)) {
+				addresses.put(child, new String(curClient.getData().forPath(zkNode + "/" + child)));
+			}
+		}
+		Iterator<Map.Entry<String, String>> it = addresses.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, String> e = it.next();
+			if (!children.contains(e.getKey())) {
+				it.remove();
+				peers.closeDestination(e.getValue());
+			}
+		}
+		for (String child : children) {
+			String address = addresses.get(child);
+			if (address != null && !address.equals(IP + ":" + Port)) {
+				String[] hostPort = address.split(":");
+				peers.prewarm(hostPort[0], Integer.parseInt(hostPort[1]), 1);
+			}
+		}
+		return children;
+	}
 
-		TSocket sock = new TSocket(primary[0], Integer.parseInt(primary[1]));
-		TTransport transport = new TFramedTransport(sock);
-		TProtocol protocol = new TBinaryProtocol(transport);
-		KeyValueService.Client client = new KeyValueService.Client(protocol);
-		transport.open();
+	// "IP:port" stored in the child's znode
+	String addressOf(String child) throws Exception {
+		String address = addresses.get(child);
+		if (address == null) {
+			address = new String(curClient.getData().forPath(zkNode + "/" + child));
+			addresses.put(child, address);
+		}
+		return address;
+	}
 
-		return client;
+	// the member's answer (false = it is a SPARE), TException = no answer within pingTimeoutMs
+	boolean ping(String child) throws Exception {
+		String[] hostPort = addressOf(child).split(":");
+		Connection c = peers.popConnection(hostPort[0], Integer.parseInt(hostPort[1]));
+		try {
+			boolean answer = c.client.ping();
+			peers.addConnection(c);
+			return answer;
+		} catch (TException e) {
+			peers.discardConnection(c);
+			throw e;
+		}
 	}
-	
-	synchronized public void process(WatchedEvent event) {				// the Watched Event is the addition/deletion of a znode from the children of the zknode [/lsilobad/ OR /m3pavlov/]
+
+	// become the backup of `child`; the join can carry a whole snapshot, so no read timeout for this one call
+	void join(String child) throws Exception {
+		String address = addressOf(child);
+		String[] hostPort = address.split(":");
+		Connection c = peers.popConnection(hostPort[0], Integer.parseInt(hostPort[1]));
 		try {
-			identify();
-		} catch (Exception e) {
-			System.out.println("WATCHER: identify() failed");
+			c.setTimeout(0);
+			ServiceHandler.joinPrimary(c.client, address);
+			c.setTimeout(pingTimeoutMs);
+			peers.addConnection(c);
+		} catch (TException e) {
+			peers.discardConnection(c);
+			throw e;
 		}
 	}
+	
+	public void process(WatchedEvent event) {							// the Watched Event is the addition/deletion of a znode from the children of the zknode [/lsilobad/ OR /m3pavlov/]
+		if (event != null) {
+			eventNanos = System.nanoTime();
+		}
+		if (!pending.compareAndSet(false, true)) {
+			return;														// a run is already queued, it will see this change too
+		}
+		events.execute(() -> {
+			pending.set(false);
+			try {
+				identify();
+			} catch (Exception e) {
+				System.out.println("WATCHER: identify() failed");
+				e.printStackTrace();
+				// e.g. the join failed: no event may come to retry it, so try again in a second
+				try {
+					Thread.sleep(1000);
+				} catch (InterruptedException ie) {
+					return;
+				}
+				process(null);
+			}
+		});
+	}
     
 }
 
@@ -0,0 +1,111 @@
+import java.util.*;
+
+import org.apache.curator.framework.*;
+
+/*
+ * Client side routing of keys over several primary/backup groups
+ *
+ * ... every group is an independent primary/backup pair under its own ZooKeeper path (e.g. /$USER-0, /$USER-1),
+ * so write throughput and data set size grow with the number of groups instead of being capped by one primary.
+ *
+ * Keys are placed with consistent hashing: every group owns `vnodes` points on a 64-bit ring, and a key goes to
+ * the first point at or after its own hash. With enough virtual nodes each group gets an even share of the keys,
+ * and adding a group only moves the keys that land on its new points.
+ *
+ * Every group has its own KeyValueClient (its own watch, cached primary and connection pool), so a failover in one
+ * group doesn't stall the others.
+ */
+public class ShardRouter {
+    private KeyValueClient[] groups;
+    private long[] ringHashes;                      // sorted points on the ring
+    private int[] ringGroups;                       // ringGroups[i] = group that owns ringHashes[i]
+
+    public ShardRouter(CuratorFramework curClient, List<String> zkNodes, int vnodes) {
+        this(curClient, zkNodes, vnodes, 16, 5000);
+    }
+
+    // poolSize, timeoutMs: see KeyValueClient
+    public ShardRouter(CuratorFramework curClient, List<String> zkNodes, int vnodes, int poolSize, int timeoutMs) {
+        this.groups = new KeyValueClient[zkNodes.size()];
+        for (int g = 0; g < groups.length; g++) {
+            groups[g] = new KeyValueClient(curClient, zkNodes.get(g), poolSize, timeoutMs);
+        }
+
+        TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+        for (int g = 0; g < groups.length; g++) {
+            for (int v = 0; v < vnodes; v++) {
+                ring.put(hash(zkNodes.get(g) + "#" + v), g);
+            }
+        }
+        ringHashes = new long[ring.size()];
+        ringGroups = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> e : ring.entrySet()) {
+            ringHashes[i] = e.getKey();
+            ringGroups[i] = e.getValue();
+            i++;
+        }
+    }
+
+    // 64-bit FNV-1a followed by a murmur3 finalizer, so similar keys ("key-1", "key-2") spread over the whole ring
+    static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // look up the primary of every group once and set the watches
+    public void start() throws Exception {
+        for (KeyValueClient group : groups) {
+            group.start();
+        }
+    }
+
+    public void close() {
+        for (KeyValueClient group : groups) {
+            group.close();
+        }
+    }
+
+    public int numGroups() {
+        return groups.length;
+    }
+
+    public String groupName(int g) {
+        return groups[g].getZkNode();
+    }
+
+    public int groupFor(String key) {
+        int i = Arrays.binarySearch(ringHashes, hash(key));
+        if (i < 0) {
+            i = -i - 1;
+        }
+        return ringGroups[(i == ringHashes.length) ? 0 : i];
+    }
+
+    // client of group g (cached primary, pooled connections, retries), shared by all threads
+    public KeyValueClient client(int g) {
+        return groups[g];
+    }
+
+    public KeyValueClient clientFor(String key) {
+        return groups[groupFor(key)];
+    }
+
+    // split keys by group, keeping their order within each group
+    public Map<Integer, List<String>> partition(Collection<String> keys) {
+        Map<Integer, List<String>> parts = new HashMap<Integer, List<String>>();
+        for (String key : keys) {
+            parts.computeIfAbsent(groupFor(key), g -> new ArrayList<String>()).add(key);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+
+/*
+ * A consistent view of a storage engine as of one sequence number, read while writes go on (StorageEngine.snapshot)
+ *
+ * ... forEach on the live map gives a mix: keys it visits early show their old values, keys it visits late may show
+ * writes that happened during the walk. A snapshot shows every key as it was at sequence `seq`, for as long as it is
+ * open, without pausing or slowing down puts:
+ *
+ *  - taking one is O(1): it is registered with the engine and notes the last sequence, nothing is copied
+ *  - copy-on-write per key: the write that replaces a version <= seq with a newer one saves the old version in the
+ *    snapshot first (under the engine's key lock, before the new one is visible); more writes to that key cost nothing
+ *  - forEach walks the live engine: an entry with a sequence <= seq is what the key was at the snapshot, a newer one is
+ *    replaced by the saved version, or skipped if the key didn't exist yet
+ *
+ * So an open snapshot costs one saved version per key written while it is open, and with none open a write pays a
+ * volatile read. Close it when done, otherwise it keeps saving.
+ *
+ * "As of seq": every write acknowledged before the snapshot was taken is in it, no write with a later sequence is; on
+ * the primary a write still in flight (sequence taken, not yet applied) may or may not be. On a backup seq is the
+ * highest sequence applied so far, a gap filled in later shows up if the walk hasn't passed its key yet.
+ *
+ * clear() (a backup being reseeded) invalidates every open snapshot, its forEach then throws IllegalStateException.
+ */
+public class Snapshot implements AutoCloseable {
+    static final int PENDING = Integer.MAX_VALUE;       // registered, the sequence is not read yet
+
+    private Registry registry;
+    private StorageEngine engine;
+    private volatile int seq = PENDING;
+    private ConcurrentHashMap<String, Version> saved = new ConcurrentHashMap<String, Version>();
+    private volatile boolean invalid;
+
+    static final class Version {
+        final String value;
+        final int seq;
+
+        Version(String value, int seq) {
+            this.value = value;
+            this.seq = seq;
+        }
+    }
+
+    private Snapshot(Registry registry, StorageEngine engine) {
+        this.registry = registry;
+        this.engine = engine;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    // versions saved from writes so far
+    public int getSaved() {
+        return saved.size();
+    }
+
+    // keys in the engine right now: about what forEach will visit, for progress reports
+    public int sizeEstimate() {
+        return engine.size();
+    }
+
+    // every entry as of seq; like the engine's forEach, it stops early if the visitor returns false
+    public void forEach(StorageEngine.EntryVisitor visitor) {
+        int s = seq;
+        engine.forEach((key, value, entrySeq) -> {
+            if (entrySeq <= s) {
+                return visitor.visit(key, value, entrySeq);
+            }
+            Version v = saved.get(key);                 // saved before the newer version became visible
+            return (v == null) || visitor.visit(key, v.value, v.seq);
+        });
+        if (invalid) {
+            throw new IllegalStateException("Snapshot at " + s + " was invalidated by clear()");
+        }
+    }
+
+    public void close() {
+        registry.remove(this);
+        saved.clear();
+    }
+
+    // key goes from (value, oldSeq) to a version with newSeq, keep the old one if it is ours
+    private void overwriting(String key, String value, int oldSeq, int newSeq) {
+        int s = seq;
+        while (s == PENDING) {                          // open() is between registering us and reading the sequence
+            Thread.yield();
+            s = seq;
+        }
+        if (oldSeq <= s && newSeq > s) {
+            saved.putIfAbsent(key, new Version(value, oldSeq));
+        }
+    }
+
+    /*
+     * the open snapshots of one engine; the engine calls overwriting from every write path, under the key lock
+     */
+    public static final class Registry {
+        private static final Snapshot[] NONE = new Snapshot[0];
+
+        private StorageEngine engine;
+        private volatile Snapshot[] open = NONE;        // copy on write, writers only read it
+
+        public Registry(StorageEngine engine) {
+            this.engine = engine;
+        }
+
+        /*
+         * lastSeq is read after the snapshot is registered: a write that takes a later sequence number does so after
+         * that read, so it already sees the snapshot when it checks (and waits out PENDING)
+         */
+        public Snapshot open(IntSupplier lastSeq) {
+            Snapshot snapshot = new Snapshot(this, engine);
+            synchronized (this) {
+                Snapshot[] next = Arrays.copyOf(open, open.length + 1);
+                next[open.length] = snapshot;
+                open = next;
+            }
+            snapshot.seq = lastSeq.getAsInt();
+            return snapshot;
+        }
+
+        synchronized void remove(Snapshot snapshot) {
+            Snapshot[] cur = open;
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] == snapshot) {
+                    Snapshot[] next = new Snapshot[cur.length - 1];
+                    System.arraycopy(cur, 0, next, 0, i);
+                    System.arraycopy(cur, i + 1, next, i, cur.length - i - 1);
+                    open = (next.length == 0) ? NONE : next;
+                    return;
+                }
+            }
+        }
+
+        // no snapshot open: the engine can skip reading the old value (off-heap decode, cold value from disk)
+        public boolean isEmpty() {
+            return open.length == 0;
+        }
+
+        // key is about to go from (value, oldSeq) to a version with newSeq
+        public void overwriting(String key, String value, int oldSeq, int newSeq) {
+            Snapshot[] cur = open;
+            for (Snapshot s : cur) {
+                s.overwriting(key, value, oldSeq, newSeq);
+            }
+        }
+
+        // the engine was cleared, what the open snapshots would still show is gone
+        public void invalidate() {
+            for (Snapshot s : open) {
+                s.invalid = true;
+            }
+        }
+    }
+}
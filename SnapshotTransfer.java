@@ -0,0 +1,171 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The purpose of this class is to copy the whole data set from the PRIMARY to a new BACKUP (completeDataTransfer)
+ *
+ * ... instead of copying every key into a list first, we walk a snapshot of the map (see Snapshot) once and cut it
+ * into chunks as we go.
+ * A chunk is closed when it reaches chunkBytes (keys + values), not after a fixed number of entries, so big values
+ * don't produce huge frames and small values don't produce tiny ones.
+ *
+ * Chunks are sent by `streams` threads in parallel, each on its own pooled connection. At most 2 * streams chunks
+ * can be built but not yet acked; after that the walk waits (backpressure), so memory stays bounded by the chunks
+ * in flight and not by the size of the map.
+ *
+ * Puts keep running during the transfer and are forwarded to the new backup as usual. The snapshot holds every key as
+ * of the base sequence, the writes after it are exactly the forwarded ones; every chunk entry carries the sequence
+ * number of the write that produced it and the backup only takes it if it has nothing newer, so the backup ends up
+ * with exactly the primary's state whatever order chunks and forwards arrive in.
+ *
+ * If the backup agreed to compression (see FrameCodec), chunks go out deflated; chunkBytes still counts raw bytes.
+ */
+public class SnapshotTransfer {
+    private KeyValueHandler handler;
+    private Snapshot snapshot;
+    private int streams;
+    private int chunkBytes;
+
+    private AtomicBoolean failed = new AtomicBoolean(false);
+    private AtomicLong keysSent = new AtomicLong();
+    private AtomicLong bytesSent = new AtomicLong();
+    private long keysTotal;                              // size of the map when the walk started (about the snapshot's)
+    private volatile boolean running;
+    private Metrics.Op chunkStats;                       // one call per chunk: setMapChunk round trip, payload bytes
+
+    public SnapshotTransfer(KeyValueHandler handler, Snapshot snapshot, int streams, int chunkBytes) {
+        this.handler = handler;
+        this.snapshot = snapshot;
+        this.streams = streams;
+        this.chunkBytes = chunkBytes;
+        this.chunkStats = handler.getTransferOp();
+    }
+
+    // progress, for getStats (a transfer runs while puts keep coming, so keysSent can end up a little off keysTotal)
+    public long getKeysSent() {
+        return keysSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getKeysTotal() {
+        return keysTotal;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean hasFailed() {
+        return failed.get();
+    }
+
+    static class Chunk {
+        List<String> keys = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        List<Integer> sequences = new ArrayList<>();
+        long bytes;
+    }
+
+    // returns true if every chunk made it to the backup
+    public boolean run() {
+        long start = System.nanoTime();
+        keysTotal = snapshot.sizeEstimate();
+        running = true;
+        ExecutorService senders = Executors.newFixedThreadPool(streams);
+        Semaphore inFlight = new Semaphore(2 * streams);
+
+        try {
+            Chunk[] chunk = { new Chunk() };
+            snapshot.forEach((key, value, seq) -> {
+                if (failed.get()) {
+                    return false;
+                }
+                // value and sequence come from the same entry, so they always belong to the same write
+                chunk[0].keys.add(key);
+                chunk[0].values.add(value);
+                chunk[0].sequences.add(seq);
+                chunk[0].bytes += key.length() + value.length() + 4;
+
+                if (chunk[0].bytes >= chunkBytes) {
+                    if (!submit(senders, inFlight, chunk[0])) {
+                        return false;
+                    }
+                    chunk[0] = new Chunk();
+                }
+                return true;
+            });
+            if (!chunk[0].keys.isEmpty() && !failed.get()) {
+                submit(senders, inFlight, chunk[0]);
+            }
+
+            // wait for the last chunks to be acked
+            inFlight.acquire(2 * streams);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+        } finally {
+            senders.shutdownNow();
+            running = false;
+        }
+
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println("TRANSFER: " + (failed.get() ? "FAILED after " : "sent ") + keysSent.get() + " keys, "
+            + (bytesSent.get() / 1024) + " KB in " + String.format("%.2f", secs) + " s -> "
+            + String.format("%.0f", keysSent.get() / secs) + " keys/s, "
+            + String.format("%.1f", bytesSent.get() / secs / (1024 * 1024)) + " MB/s over " + streams + " streams");
+        return !failed.get();
+    }
+
+    // returns false if we were interrupted while waiting for a free slot
+    private boolean submit(ExecutorService senders, Semaphore inFlight, Chunk chunk) {
+        try {
+            inFlight.acquire();                              // backpressure: wait until a chunk slot frees up
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+            return false;
+        }
+        senders.execute(new Runnable() {
+            public void run() {
+                try {
+                    send(chunk);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        });
+        return true;
+    }
+
+    private void send(Chunk chunk) {
+        if (failed.get()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Connection connectionToBackup = null;
+        try {
+            connectionToBackup = handler.popBackupConnection();
+            FrameCodec codec = handler.getBackupCodec();
+            if (codec != null) {
+                connectionToBackup.client.setMapChunkCompressed(codec.encode(chunk.keys, chunk.values, chunk.sequences));
+            } else {
+                connectionToBackup.client.setMapChunk(chunk.keys, chunk.values, chunk.sequences);
+            }
+            handler.addBackupConnection(connectionToBackup);
+            keysSent.addAndGet(chunk.keys.size());
+            bytesSent.addAndGet(chunk.bytes);
+            chunkStats.record(start, 0, chunk.bytes);
+        } catch (Exception e) {
+            chunkStats.failed(start);
+            handler.backupFailed(connectionToBackup);
+            if (failed.compareAndSet(false, true)) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
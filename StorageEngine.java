@@ -0,0 +1,98 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/*
+ * Where a StorageNode keeps its key-value pairs (KeyValueHandler.myMap)
+ *
+ * Every entry is versioned: the value is stored together with the sequence number of the write that produced it,
+ * and both are updated in one atomic step, so a backup never has to look a key up in two maps and concurrent forwards
+ * for the same key can't apply out of order.
+ *
+ * --store=heap     HeapStorageEngine, a ConcurrentHashMap<String, Versioned> (one object per entry)
+ * --store=offheap  OffHeapStorageEngine, encoded keys and values in direct ByteBuffer arenas with an open-addressing
+ *                  index, so the entries don't cost the garbage collector anything
+ * --store=tiered   TieredStorageEngine, values over a memory budget are demoted to local disk (CLOCK), every key
+ *                  stays in an in-memory index
+ *
+ * Every engine supports O(1) copy-on-write snapshots (Snapshot): each write path tells the engine's Snapshot.Registry
+ * before it replaces a version, under the same key lock.
+ *
+ * --index=ordered  wraps any of them in an OrderedIndex, a sorted set of the keys for range scans
+ *
+ * All methods are thread safe.
+ */
+public interface StorageEngine {
+
+    // null if the key is not there
+    String get(String key);
+
+    // same, and the sequence number of the entry goes to seq[0] (read together with the value; untouched if missing)
+    String get(String key, int[] seq);
+
+    /*
+     * primary side: store the value under a brand new sequence number taken from nextSeq, returns that number
+     * the number is taken while the key is locked, so the order of sequence numbers is the order of the writes
+     */
+    int put(String key, String value, IntSupplier nextSeq);
+
+    /*
+     * primary side, read-modify-write: store update(current value) (current = null if missing) under a new sequence
+     * number, all while the key is locked; returns that number, or 0 if update returned null (nothing is written)
+     * update runs exactly once
+     */
+    int update(String key, UnaryOperator<String> update, IntSupplier nextSeq);
+
+    /*
+     * backup / recovery side: store the value only if the key is missing or its current sequence is older
+     * (strict = false: also if it is the same), returns true if the value was stored
+     */
+    boolean putIfNewer(String key, String value, int seq, boolean strict);
+
+    boolean containsKey(String key);
+
+    int size();
+
+    void clear();
+
+    // walk every entry (weakly consistent with concurrent writes, like a ConcurrentHashMap iterator);
+    // the walk stops early if the visitor returns false
+    void forEach(EntryVisitor visitor);
+
+    /*
+     * a consistent view of every entry as of the last sequence (read with lastSeq once the snapshot is registered),
+     * taken in O(1) while writes go on; close it when done (see Snapshot)
+     */
+    Snapshot snapshot(IntSupplier lastSeq);
+
+    // bytes this engine holds outside the Java heap (0 for the heap engine)
+    long offHeapBytes();
+
+    // engine specific counters for getStats, e.g. hit ratio of a tiered store
+    default void addStats(Map<String, Long> stats, String prefix) {
+    }
+
+    interface EntryVisitor {
+        boolean visit(String key, String value, int seq);
+    }
+
+    // memoryBudget (bytes of values kept in memory) and coldDir (where the rest goes) are for tiered only
+    static StorageEngine create(String name, long memoryBudget, File coldDir) throws IOException {
+        if (name.equals("heap")) {
+            return new HeapStorageEngine();
+        } else if (name.equals("offheap")) {
+            return new OffHeapStorageEngine(64);
+        } else if (name.equals("tiered")) {
+            return new TieredStorageEngine(64, memoryBudget, coldDir);
+        }
+        throw new IllegalArgumentException("Unknown store: " + name);
+    }
+
+    // for benchmarks: tiered gets 64 MB in memory and a fresh temporary directory, so a big enough run reaches the disk
+    static StorageEngine create(String name) throws IOException {
+        return create(name, 64L << 20, name.equals("tiered") ? Files.createTempDirectory("cold-").toFile() : null);
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.thrift.*;
 import org.apache.thrift.server.*;
@@ -22,17 +23,19 @@ public class StorageNode {
 		BasicConfigurator.configure();
 		log = Logger.getLogger(StorageNode.class.getName());
 
-		if (args.length != 4) {
-			System.err.println("Usage: java StorageNode host port zkconnectstring zknode");
+		Options opts = new Options(args);
+		if (opts.numPositional() != 4) {
+			System.err.println("Usage: java StorageNode host port zkconnectstring zknode [--server=threadpool|hsha|selector] [--workers=N] [--selectors=N] [--frames-in-flight=N] [--max-frame=N] [--pool-size=N] [--pool-timeout-ms=N] [--transfer-streams=N] [--transfer-chunk-kb=N] [--replication-log=N] [--data-dir=DIR] [--durability=async|group|sync] [--checkpoint-interval-s=N] [--store=heap|offheap|tiered] [--memory-mb=N] [--cold-dir=DIR] [--index=none|ordered] [--read-lease-ms=N] [--stats-interval-s=N] [--ping-timeout-ms=N] [--session-timeout-ms=N] [--replication=primary-backup|chain] [--rf=N] [--compression=none|deflate] [--compression-level=N] [--compression-dict-kb=N] [--virtual-threads] [--admission=off|aimd] [--admission-target-ms=N] [--admission-limit=N] [--admission-max=N]");
 			System.exit(-1);
 		}
+		args = new String[] { opts.get(0), opts.get(1), opts.get(2), opts.get(3) };
 
 		CuratorFramework curClient =
 			CuratorFrameworkFactory.builder()
 			.connectString(args[2])
 			.retryPolicy(new RetryNTimes(10, 1000))
 			.connectionTimeoutMs(1000)
-			.sessionTimeoutMs(10000)
+			.sessionTimeoutMs(opts.getInt("session-timeout-ms", 10000))		// how long ZooKeeper takes to notice a dead node, most of a failover
 
 			.build();
 
@@ -43,17 +46,68 @@ public class StorageNode {
 			}
 		});
 
-		// this is TThreadPoolServer -> one thread to accept connections and then handles each connection using a dedicated thread drawn from a pool of worker threads
-		KeyValueHandler ServiceHandler = new KeyValueHandler(args[0], Integer.parseInt(args[1]), curClient, args[3]);
+		// pooled connections from this node to the backup: max per destination, wait for a free one, evict after 60 s idle
+		Manager backupManager = new Manager(opts.getInt("pool-size", 32), opts.getInt("pool-timeout-ms", 1000), 60000, 0);
+		// --store=tiered keeps --memory-mb of values on the heap and demotes the rest to files in --cold-dir
+		File coldDir = new File(opts.getString("cold-dir", "cold-" + args[1]));
+		StorageEngine store = StorageEngine.create(opts.getString("store", "heap"), opts.getLong("memory-mb", 1024) << 20, coldDir);
+		if (store instanceof TieredStorageEngine) {
+			log.info("Tiered store: " + opts.getLong("memory-mb", 1024) + " MB of values in memory, the rest in " + coldDir);
+		}
+		// --index=ordered keeps the keys sorted as well, for the scan RPC (give every node of the group the same flag)
+		if (opts.getString("index", "none").equals("ordered")) {
+			store = new OrderedIndex(store);
+		}
+		// --virtual-threads (Java 21): RPCs and replication senders run on virtual threads, see buildServer
+		ThreadFactory senderThreads = opts.getBoolean("virtual-threads") ? VirtualThreads.factory("replication-sender-") : null;
+		KeyValueHandler ServiceHandler = new KeyValueHandler(args[0], Integer.parseInt(args[1]), curClient, args[3], store, backupManager,
+			opts.getInt("frames-in-flight", 4), opts.getInt("max-frame", 512), senderThreads);
+		ServiceHandler.configureReplicationLog(opts.getInt("replication-log", 1 << 20));
+		ServiceHandler.configureTransfer(opts.getInt("transfer-streams", 4), opts.getInt("transfer-chunk-kb", 4096) * 1024);
+		// --replication=chain --rf=N: chain replication over the first N nodes, writes go to the head, reads to the tail
+		String replication = opts.getString("replication", "primary-backup");
+		if (replication.equals("chain")) {
+			ServiceHandler.configureChain(opts.getInt("rf", 3));
+			log.info("Chain replication with " + opts.getInt("rf", 3) + " replicas");
+		} else if (!replication.equals("primary-backup")) {
+			throw new IllegalArgumentException("Unknown replication mode: " + replication);
+		}
+		// --compression=deflate packs replication frames and snapshot chunks to the backup and deflates them (if the backup
+		// agrees), --compression-dict-kb=N adds a preset dictionary trained on the data; ratio and MB/s are in getStats
+		String compression = opts.getString("compression", "none");
+		if (compression.equals("deflate")) {
+			ServiceHandler.configureCompression(opts.getInt("compression-level", 1), opts.getInt("compression-dict-kb", 0) * 1024);
+		} else if (!compression.equals("none")) {
+			throw new IllegalArgumentException("Unknown compression: " + compression);
+		}
+		// --read-lease-ms=N lets the backup answer get under an N ms lease from the primary (0 = only the primary reads)
+		// (not with a chain, there the tail answers reads anyway)
+		if (!ServiceHandler.isChain()) {
+			ServiceHandler.configureReadLease(opts.getLong("read-lease-ms", 0));
+		}
+		// --admission=aimd: at most an adaptive number of reads / writes / scans run at once, the rest are turned away with
+		// Overloaded right away; the limits start at --admission-limit and move between 1 and --admission-max so that requests
+		// finish within --admission-target-ms (see AdmissionController)
+		String admission = opts.getString("admission", "off");
+		if (admission.equals("aimd")) {
+			ServiceHandler.configureAdmission(new AdmissionController(opts.getLong("admission-target-ms", 20),
+				opts.getInt("admission-limit", 32), opts.getInt("admission-max", 1024)));
+			log.info("Admission control: AIMD limits, target latency " + opts.getLong("admission-target-ms", 20) + " ms");
+		} else if (!admission.equals("off")) {
+			throw new IllegalArgumentException("Unknown admission mode: " + admission);
+		}
+		// counters and latency percentiles are served by the getStats RPC and logged every --stats-interval-s (0 = not logged)
+		ServiceHandler.configureStats(opts.getInt("stats-interval-s", 60) * 1000L);
+
+		// optional local persistence: recover from the data directory before we start serving, then log every write
+		if (opts.has("data-dir")) {
+			WriteAheadLog.Durability durability = WriteAheadLog.Durability.valueOf(opts.getString("durability", "group").toUpperCase());
+			WriteAheadLog wal = new WriteAheadLog(new File(opts.getString("data-dir", "")), durability, 10);
+			ServiceHandler.enablePersistence(wal, opts.getInt("checkpoint-interval-s", 300) * 1000L);
+			log.info("Persistence enabled in " + opts.getString("data-dir", "") + " with durability " + durability);
+		}
 		KeyValueService.Processor<KeyValueService.Iface> processor = new KeyValueService.Processor<>(ServiceHandler);
-		TServerSocket socket = new TServerSocket(Integer.parseInt(args[1]));
-		TThreadPoolServer.Args sargs = new TThreadPoolServer.Args(socket);
-		sargs.protocolFactory(new TBinaryProtocol.Factory());
-		sargs.transportFactory(new TFramedTransport.Factory());
-		sargs.processorFactory(new TProcessorFactory(processor));
-		sargs.maxWorkerThreads(64);
-		TServer server = new TThreadPoolServer(sargs);
-		log.info("Launching server");
+		TServer server = buildServer(opts, processor, Integer.parseInt(args[1]));
 
 		new Thread(new Runnable() {
 			public void run() {
@@ -71,11 +125,72 @@ public class StorageNode {
 		// set our current server status to SPARE
 		ServiceHandler.setState(State.SPARE);
 
-		ServerWatcher watcher = new ServerWatcher(curClient, ServiceHandler, args[3], args[0], Integer.parseInt(args[1]));
+		ServerWatcher watcher = new ServerWatcher(curClient, ServiceHandler, args[3], args[0], Integer.parseInt(args[1]), opts.getInt("ping-timeout-ms", 500));
 
 		// determine our actual status -> is it a PRIMARY? BACKUP? or SPARE?
 		watcher.identify();														// NOTE: this call to identify also sets the watched event
 
 		// System.out.println("STORAGENODE: Server is initialized as: " + ServiceHandler.getState() + " isAlone: " + ServiceHandler.get_isAlone());
     }
+
+	/*
+	 * --server=threadpool (default) -> TThreadPoolServer: one thread to accept connections and then handles each connection
+	 *                                  using a dedicated thread drawn from a pool of --workers worker threads
+	 * --server=hsha                 -> THsHaServer: one selector thread does all the socket I/O, complete frames are handed
+	 *                                  to a pool of --workers worker threads
+	 * --server=selector             -> TThreadedSelectorServer: an accept thread plus --selectors selector threads for I/O,
+	 *                                  and a pool of --workers worker threads for the RPCs
+	 *
+	 * with the non-blocking modes an idle connection costs a socket and a buffer, not a thread, so thousands of mostly idle
+	 * clients don't exhaust the worker pool. All modes speak framed binary protocol, so clients don't need to change.
+	 *
+	 * --virtual-threads (Java 21) replaces the worker pool of any mode with a new virtual thread per task: per connection
+	 * for threadpool, so it keeps the simple blocking model without the --workers cap (a connection costs a socket and a
+	 * parked virtual thread of a few KB), per RPC for hsha and selector. --workers is ignored then.
+	 */
+	static TServer buildServer(Options opts, TProcessor processor, int port) throws TTransportException {
+		String mode = opts.getString("server", "threadpool");
+		int workers = opts.getInt("workers", 64);
+		boolean virtual = opts.getBoolean("virtual-threads");
+
+		if (mode.equals("hsha")) {
+			THsHaServer.Args sargs = new THsHaServer.Args(new TNonblockingServerSocket(port));
+			sargs.protocolFactory(new TBinaryProtocol.Factory());
+			sargs.transportFactory(new TFramedTransport.Factory());
+			sargs.processorFactory(new TProcessorFactory(processor));
+			sargs.minWorkerThreads(workers);
+			sargs.maxWorkerThreads(workers);
+			if (virtual) {
+				sargs.executorService(VirtualThreads.perTaskExecutor("kv-worker-"));
+			}
+			log.info("Launching THsHaServer with " + (virtual ? "a virtual thread per RPC" : workers + " worker threads"));
+			return new THsHaServer(sargs);
+		} else if (mode.equals("selector")) {
+			int selectors = opts.getInt("selectors", 2);
+			TThreadedSelectorServer.Args sargs = new TThreadedSelectorServer.Args(new TNonblockingServerSocket(port));
+			sargs.protocolFactory(new TBinaryProtocol.Factory());
+			sargs.transportFactory(new TFramedTransport.Factory());
+			sargs.processorFactory(new TProcessorFactory(processor));
+			sargs.selectorThreads(selectors);
+			sargs.workerThreads(workers);
+			if (virtual) {
+				sargs.executorService(VirtualThreads.perTaskExecutor("kv-worker-"));
+			}
+			log.info("Launching TThreadedSelectorServer with " + selectors + " selector threads and " + (virtual ? "a virtual thread per RPC" : workers + " worker threads"));
+			return new TThreadedSelectorServer(sargs);
+		} else if (mode.equals("threadpool")) {
+			TThreadPoolServer.Args sargs = new TThreadPoolServer.Args(new TServerSocket(port));
+			sargs.protocolFactory(new TBinaryProtocol.Factory());
+			sargs.transportFactory(new TFramedTransport.Factory());
+			sargs.processorFactory(new TProcessorFactory(processor));
+			sargs.maxWorkerThreads(workers);
+			if (virtual) {
+				sargs.executorService(VirtualThreads.perTaskExecutor("kv-conn-"));
+			}
+			log.info("Launching TThreadPoolServer with " + (virtual ? "a virtual thread per connection" : "up to " + workers + " worker threads"));
+			return new TThreadPoolServer(sargs);
+		} else {
+			throw new IllegalArgumentException("Unknown server mode: " + mode);
+		}
+	}
 }
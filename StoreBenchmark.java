@@ -0,0 +1,252 @@
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/*
+ * Compares the storage engines: memory per entry and GC pauses under a put/get load
+ *
+ * loads `entries` small entries, measures heap (after a full GC) + off-heap bytes per entry,
+ * then runs 50/50 puts and gets over the same keys and records every GC pause while it runs
+ *
+ * run each engine in its own JVM with the same -Xmx so they don't disturb each other, e.g.
+ *   java -Xmx8g StoreBenchmark heap --entries=20000000
+ *   java -Xmx8g StoreBenchmark offheap --entries=20000000
+ *   java -Xmx8g StoreBenchmark tiered --entries=20000000 --memory-mb=512 --cold-dir=/mnt/ssd/cold
+ *
+ * --index wraps the engine in an OrderedIndex: compare load time, bytes per entry and put/get ops/s with the run
+ * without it for what the index costs, then it scans pages of --scan-page keys (default 100) from random start keys
+ * for --seconds and reports scanned keys/s
+
+ *
+ * --snapshot then takes snapshots (see Snapshot) while --threads threads keep putting for --seconds: how long taking
+ * one takes, how fast it is walked, how many versions the puts had to save meanwhile, and puts/s during the walks;
+ * every walk is checked to see each key once and nothing newer than the snapshot
+ */
+public class StoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new Options(args);
+        if (opts.numPositional() != 1) {
+            System.err.println("Usage: java StoreBenchmark heap|offheap|tiered [--memory-mb=N --cold-dir=DIR] [--entries=N] [--value-size=N] [--threads=N] [--seconds=N] [--index] [--scan-page=N] [--snapshot]");
+            System.exit(-1);
+        }
+        String engine = opts.get(0) + (opts.getBoolean("index") ? "+index" : "");
+        int entries = opts.getInt("entries", 5000000);
+        int valueSize = opts.getInt("value-size", 32);
+        int threads = opts.getInt("threads", 4);
+        int seconds = opts.getInt("seconds", 10);
+
+        List<Long> pauses = Collections.synchronizedList(new ArrayList<Long>());
+        listenForPauses(pauses);
+
+        long heapBefore = usedHeapAfterGc();
+        StorageEngine engineStore = opts.has("cold-dir")
+            ? StorageEngine.create(opts.get(0), opts.getLong("memory-mb", 64) << 20, new java.io.File(opts.getString("cold-dir", "")))
+            : StorageEngine.create(opts.get(0));
+        StorageEngine store = opts.getBoolean("index") ? new OrderedIndex(engineStore) : engineStore;
+        AtomicInteger seq = new AtomicInteger();
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            store.put("key-" + i, value(i, valueSize), seq::incrementAndGet);
+        }
+        double loadSecs = (System.nanoTime() - start) / 1e9;
+        long heapAfter = usedHeapAfterGc();
+        long heapPerEntry = (heapAfter - heapBefore) / entries;
+        long offHeapPerEntry = store.offHeapBytes() / entries;
+        System.out.println(engine + ": loaded " + entries + " entries in " + String.format("%.1f", loadSecs) + " s");
+        System.out.println(engine + ": heap " + heapPerEntry + " B/entry, off-heap " + offHeapPerEntry + " B/entry, total "
+            + (heapPerEntry + offHeapPerEntry) + " B/entry");
+
+        pauses.clear();
+        AtomicLong ops = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> tlist = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                Random rand = new Random(id);
+                long n = 0;
+                while (System.nanoTime() < end) {
+                    int k = rand.nextInt(entries);
+                    if (rand.nextBoolean()) {
+                        store.put("key-" + k, value(rand.nextInt(), valueSize), seq::incrementAndGet);
+                    } else {
+                        store.get("key-" + k);
+                    }
+                    n++;
+                }
+                ops.addAndGet(n);
+            });
+            tlist.add(th);
+            th.start();
+        }
+        for (Thread th : tlist) {
+            th.join();
+        }
+
+        List<Long> sorted;
+        synchronized (pauses) {
+            sorted = new ArrayList<>(pauses);
+        }
+        Collections.sort(sorted);
+        long total = 0;
+        for (long p : sorted) {
+            total += p;
+        }
+        System.out.println(engine + ": " + ops.get() / seconds + " ops/s with " + threads + " threads");
+        System.out.println(engine + ": " + sorted.size() + " GC pauses, total " + total + " ms, p99 "
+            + (sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * 0.99)))) + " ms, max "
+            + (sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1)) + " ms");
+        if (store instanceof OrderedIndex) {
+            scan((OrderedIndex) store, engine, entries, threads, seconds, opts.getInt("scan-page", 100));
+        }
+        if (opts.getBoolean("snapshot")) {
+            snapshots(store, engine, entries, valueSize, threads, seconds, seq);
+        }
+        System.out.println(engine + ": " + store.size() + " entries at the end");     // keeps the store reachable
+    }
+
+    // pages of `page` keys from random start keys, the way KeyValueHandler.scan reads them (key from the index, value from the engine)
+    static void scan(OrderedIndex store, String engine, int entries, int threads, int seconds, int page) throws InterruptedException {
+        AtomicLong keys = new AtomicLong();
+        AtomicLong pages = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> tlist = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                Random rand = new Random(id);
+                long n = 0, p = 0;
+                while (System.nanoTime() < end) {
+                    int got = 0;
+                    for (String key : store.range("key-" + rand.nextInt(entries), null, null)) {
+                        if (got == page) {
+                            break;
+                        }
+                        if (store.get(key) != null) {
+                            got++;
+                        }
+                    }
+                    n += got;
+                    p++;
+                }
+                keys.addAndGet(n);
+                pages.addAndGet(p);
+            });
+            tlist.add(th);
+            th.start();
+        }
+        for (Thread th : tlist) {
+            th.join();
+        }
+        System.out.println(engine + ": scan " + keys.get() / seconds + " keys/s, " + pages.get() / seconds + " pages/s of "
+            + page + " keys with " + threads + " threads");
+    }
+
+    // puts only for --seconds as the baseline, then the same while the main thread walks one snapshot after another
+    static void snapshots(StorageEngine store, String engine, int entries, int valueSize, int threads, int seconds, AtomicInteger seq) throws InterruptedException {
+        AtomicLong basePuts = new AtomicLong();
+        for (Thread th : startPuts(store, entries, valueSize, threads, seconds, seq, basePuts)) {
+            th.join();
+        }
+        long baseline = basePuts.get() / seconds;
+
+        AtomicLong puts = new AtomicLong();
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> tlist = startPuts(store, entries, valueSize, threads, seconds, seq, puts);
+        long taken = 0, openNanos = 0, maxOpenNanos = 0, walkNanos = 0, walked = 0, saved = 0, bad = 0;
+        long start = System.nanoTime();
+        while (System.nanoTime() < end) {
+            long t0 = System.nanoTime();
+            try (Snapshot snapshot = store.snapshot(seq::get)) {
+                long t1 = System.nanoTime();
+                int at = snapshot.getSeq();
+                long[] count = { 0, 0 };
+                snapshot.forEach((key, value, s) -> {
+                    count[0]++;
+                    if (s > at) {
+                        count[1]++;
+                    }
+                    return true;
+                });
+                walkNanos += System.nanoTime() - t1;
+                openNanos += t1 - t0;
+                maxOpenNanos = Math.max(maxOpenNanos, t1 - t0);
+                walked += count[0];
+                saved += snapshot.getSaved();
+                bad += count[1] + Math.abs(count[0] - entries);
+                taken++;
+            }
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        for (Thread th : tlist) {
+            th.join();
+        }
+        System.out.println(engine + ": " + taken + " snapshots, taking one " + openNanos / Math.max(1, taken) / 1000 + " us (max "
+            + maxOpenNanos / 1000 + " us), walking " + (long) (walked / (walkNanos / 1e9)) + " entries/s, "
+            + saved / Math.max(1, taken) + " versions saved per snapshot, " + bad + " inconsistent entries");
+        System.out.println(engine + ": " + (long) (puts.get() / secs) + " puts/s with " + threads + " threads during the walks, "
+            + baseline + " puts/s without snapshots");
+    }
+
+    // threads putting random keys for `seconds`, they add how many they did to puts
+    static List<Thread> startPuts(StorageEngine store, int entries, int valueSize, int threads, int seconds, AtomicInteger seq, AtomicLong puts) {
+        long end = System.nanoTime() + seconds * 1000000000L;
+        List<Thread> tlist = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                Random rand = new Random(id);
+                long n = 0;
+                while (System.nanoTime() < end) {
+                    store.put("key-" + rand.nextInt(entries), value(rand.nextInt(), valueSize), seq::incrementAndGet);
+                    n++;
+                }
+                puts.addAndGet(n);
+            });
+            tlist.add(th);
+            th.start();
+        }
+        return tlist;
+    }
+
+    static String value(int i, int size) {
+        StringBuilder sb = new StringBuilder(size);
+        sb.append("value-").append(i & Integer.MAX_VALUE);
+        while (sb.length() < size) {
+            sb.append('x');
+        }
+        sb.setLength(size);
+        return sb.toString();
+    }
+
+    static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    // record the duration of every GC (HotSpot reports it per collection through JMX notifications)
+    static void listenForPauses(List<Long> pauses) {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+                public void handleNotification(Notification n, Object handback) {
+                    if (n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+                        if (!info.getGcCause().equals("System.gc()")) {
+                            pauses.add(info.getGcInfo().getDuration());
+                        }
+                    }
+                }
+            }, null, null);
+        }
+    }
+}
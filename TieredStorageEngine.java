@@ -0,0 +1,454 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.function.UnaryOperator;
+
+/*
+ * Storage engine with a memory budget: hot values stay on the heap, cold ones are demoted to files on local disk
+ *
+ * ... every key stays in a small in-memory index entry (sequence number, and where its value is: on the heap or at
+ * an offset in the segment's file), only the values move. When the values held in memory go over the budget, a CLOCK
+ * hand sweeps the hot entries: an entry that was read or written since the last sweep gets a second chance, the others
+ * are written to disk and dropped from the heap. A get of a cold key reads the value back and makes it hot again.
+ *
+ * The disk copy of a value stays valid until the value changes, so demoting an entry that was only read costs no write.
+ * Files are append-only; when less than half of a file is still live, the segment copies the live values to a new one.
+ *
+ * To the rest of the node it is the full data set: putIfNewer compares sequences in the index without touching the
+ * disk, and forEach (snapshot transfer, checkpoints) reads cold values from disk without promoting them.
+ *
+ * The disk tier is not persistence (that's the write-ahead log), its files are wiped when the node starts.
+ *
+ * --store=tiered --memory-mb=N --cold-dir=DIR; N budgets the values, the index (keys + ~50 bytes each) comes on top.
+ */
+public class TieredStorageEngine implements StorageEngine {
+    static final long COMPACT_MIN_BYTES = 64L << 20;        // don't bother compacting files smaller than this
+
+    private Segment[] segments;
+    private int segmentMask;
+    private Snapshot.Registry snapshots = new Snapshot.Registry(this);
+
+    // counters, see addStats
+    private LongAdder hits = new LongAdder();               // gets answered from memory
+    private LongAdder misses = new LongAdder();             // gets that went to disk
+    private LongAdder demotions = new LongAdder();
+    private LongAdder diskWrites = new LongAdder();         // demotions that had to write (the value had changed)
+
+    static final class Entry {
+        String value;                                       // null while the entry is cold
+        int seq;
+        long diskOffset = -1;                               // where the current value is on disk, -1 = not on disk
+        int diskLength;
+        boolean referenced;                                 // CLOCK bit: used since the hand last passed
+        boolean inClock;
+    }
+
+    public TieredStorageEngine(int numSegments, long memoryBudget, File dir) throws IOException {
+        int n = Integer.highestOneBit(Math.max(1, numSegments - 1)) << 1;
+        dir.mkdirs();
+        this.segments = new Segment[n];
+        this.segmentMask = n - 1;
+        for (int i = 0; i < n; i++) {
+            segments[i] = new Segment(new File(dir, "cold-" + i + ".dat"), Math.max(1, memoryBudget / n));
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & segmentMask];
+    }
+
+    // what a value costs on the heap: the String, its array (Latin-1 or UTF-16) and some slack
+    static long cost(String value) {
+        return 48 + 2L * value.length();
+    }
+
+    public String get(String key) {
+        return get(key, null);
+    }
+
+    public String get(String key, int[] seq) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            Entry e = s.index.get(key);
+            if (e == null) {
+                return null;
+            }
+            if (seq != null) {
+                seq[0] = e.seq;
+            }
+            e.referenced = true;
+            if (e.value != null) {
+                hits.increment();
+                return e.value;
+            }
+            misses.increment();
+            String value = s.read(e);
+            s.setValue(e, value, true);
+            return value;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public int put(String key, String value, IntSupplier nextSeq) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            Entry e = s.index.get(key);
+            int seq = nextSeq.getAsInt();
+            if (e == null) {
+                e = new Entry();
+                s.index.put(key, e);
+            } else if (!snapshots.isEmpty()) {
+                snapshots.overwriting(key, (e.value != null) ? e.value : s.read(e), e.seq, seq);
+            }
+            e.seq = seq;
+            s.setValue(e, value, false);
+            return seq;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public int update(String key, UnaryOperator<String> update, IntSupplier nextSeq) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            Entry e = s.index.get(key);
+            String cur = null;
+            if (e != null) {
+                cur = (e.value != null) ? e.value : s.read(e);
+            }
+            String next = update.apply(cur);
+            if (next == null) {
+                return 0;
+            }
+            int seq = nextSeq.getAsInt();
+            if (e == null) {
+                e = new Entry();
+                s.index.put(key, e);
+            } else {
+                snapshots.overwriting(key, cur, e.seq, seq);
+            }
+            e.seq = seq;
+            s.setValue(e, next, false);
+            return seq;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public boolean putIfNewer(String key, String value, int seq, boolean strict) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            Entry e = s.index.get(key);
+            if (e == null) {
+                e = new Entry();
+                s.index.put(key, e);
+            } else if (strict ? seq <= e.seq : seq < e.seq) {
+                return false;
+            } else if (!snapshots.isEmpty()) {
+                snapshots.overwriting(key, (e.value != null) ? e.value : s.read(e), e.seq, seq);
+            }
+            e.seq = seq;
+            s.setValue(e, value, false);
+            return true;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public boolean containsKey(String key) {
+        Segment s = segmentFor(key);
+        s.lock.lock();
+        try {
+            return s.index.containsKey(key);
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Segment s : segments) {
+            s.lock.lock();
+            try {
+                n += s.index.size();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    public void clear() {
+        snapshots.invalidate();
+        for (Segment s : segments) {
+            s.lock.lock();
+            try {
+                s.reset();
+            } finally {
+                s.lock.unlock();
+            }
+        }
+    }
+
+    // a cold version that a snapshot saves is read back from disk, under the segment lock like any get of a cold key
+    public Snapshot snapshot(IntSupplier lastSeq) {
+        return snapshots.open(lastSeq);
+    }
+
+    // one segment at a time: take its keys, then look every one up again, so writers are only held up per entry
+    public void forEach(EntryVisitor visitor) {
+        for (Segment s : segments) {
+            List<String> keys;
+            s.lock.lock();
+            try {
+                keys = new ArrayList<String>(s.index.keySet());
+            } finally {
+                s.lock.unlock();
+            }
+            for (String key : keys) {
+                String value;
+                int seq;
+                s.lock.lock();
+                try {
+                    Entry e = s.index.get(key);
+                    if (e == null) {
+                        continue;                           // cleared meanwhile
+                    }
+                    value = (e.value != null) ? e.value : s.read(e);
+                    seq = e.seq;
+                } finally {
+                    s.lock.unlock();
+                }
+                if (!visitor.visit(key, value, seq)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public long offHeapBytes() {
+        return 0;
+    }
+
+    public void addStats(Map<String, Long> stats, String prefix) {
+        long hotBytes = 0, budget = 0, coldKeys = 0, diskBytes = 0, liveDiskBytes = 0;
+        for (Segment s : segments) {
+            s.lock.lock();
+            try {
+                hotBytes += s.hotBytes;
+                budget += s.budget;
+                coldKeys += s.index.size() - s.clock.size();
+                diskBytes += s.fileEnd;
+                liveDiskBytes += s.liveDiskBytes;
+            } finally {
+                s.lock.unlock();
+            }
+        }
+        long h = hits.sum();
+        long m = misses.sum();
+        stats.put(prefix + ".memoryBudget", budget);
+        stats.put(prefix + ".hotBytes", hotBytes);
+        stats.put(prefix + ".coldKeys", coldKeys);
+        stats.put(prefix + ".diskBytes", diskBytes);
+        stats.put(prefix + ".liveDiskBytes", liveDiskBytes);
+        stats.put(prefix + ".hits", h);
+        stats.put(prefix + ".misses", m);
+        stats.put(prefix + ".hitRatioPct", (h + m == 0) ? 100 : h * 100 / (h + m));
+        stats.put(prefix + ".demotions", demotions.sum());
+        stats.put(prefix + ".diskWrites", diskWrites.sum());
+    }
+
+    /*
+     * one lock, one index, one CLOCK ring of the hot entries and one file per segment
+     */
+    final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final File path;
+        final long budget;
+        HashMap<String, Entry> index = new HashMap<String, Entry>();
+        ArrayList<Entry> clock = new ArrayList<Entry>();
+        int hand;
+        long hotBytes;
+        FileChannel file;
+        long fileEnd;
+        long liveDiskBytes;
+
+        Segment(File path, long budget) throws IOException {
+            this.path = path;
+            this.budget = budget;
+            this.file = open(path);
+        }
+
+        private FileChannel open(File f) throws IOException {
+            return FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        // entry gets a value (new, changed, or read back from disk = unchanged) and becomes hot
+        void setValue(Entry e, String value, boolean unchanged) {
+            if (e.value != null) {
+                hotBytes -= cost(e.value);
+            }
+            if (!unchanged && e.diskOffset >= 0) {
+                liveDiskBytes -= e.diskLength;              // the disk copy is out of date now
+                e.diskOffset = -1;
+            }
+            e.value = value;
+            e.referenced = true;
+            hotBytes += cost(value);
+            if (!e.inClock) {
+                e.inClock = true;
+                clock.add(e);
+            }
+            if (hotBytes > budget) {
+                evict();
+            }
+        }
+
+        // CLOCK: sweep until we're under budget, demoting entries that weren't used since the last pass
+        private void evict() {
+            while (hotBytes > budget && !clock.isEmpty()) {
+                if (hand >= clock.size()) {
+                    hand = 0;
+                }
+                Entry e = clock.get(hand);
+                if (e.referenced) {
+                    e.referenced = false;
+                    hand++;
+                    continue;
+                }
+                try {
+                    demote(e);
+                } catch (IOException ex) {
+                    ex.printStackTrace();                   // disk trouble: stay over budget rather than lose data
+                    return;
+                }
+                Entry last = clock.remove(clock.size() - 1);
+                if (hand < clock.size()) {
+                    clock.set(hand, last);
+                }
+                e.inClock = false;
+            }
+            if (liveDiskBytes < fileEnd / 2 && fileEnd > COMPACT_MIN_BYTES) {
+                try {
+                    compact();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+
+        private void demote(Entry e) throws IOException {
+            if (e.diskOffset < 0) {
+                byte[] bytes = e.value.getBytes(StandardCharsets.UTF_8);
+                write(file, ByteBuffer.wrap(bytes), fileEnd);
+                e.diskOffset = fileEnd;
+                e.diskLength = bytes.length;
+                fileEnd += bytes.length;
+                liveDiskBytes += bytes.length;
+                diskWrites.increment();
+            }
+            hotBytes -= cost(e.value);
+            e.value = null;
+            demotions.increment();
+        }
+
+        String read(Entry e) {
+            ByteBuffer buf = ByteBuffer.allocate(e.diskLength);
+            try {
+                readFully(file, buf, e.diskOffset);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return new String(buf.array(), StandardCharsets.UTF_8);
+        }
+
+        // copy the values that are still live into a fresh file
+        // ... the entries keep pointing into the old file until the new one has replaced it, any failure before that
+        // leaves file and offsets as they were (and removes the half-written copy)
+        private void compact() throws IOException {
+            File tmp = new File(path.getPath() + ".compact");
+            FileChannel next = open(tmp);
+            List<Entry> moved = new ArrayList<Entry>();
+            long[] offsets = new long[16];
+            long end = 0;
+            try {
+                for (Entry e : index.values()) {
+                    if (e.diskOffset >= 0) {
+                        ByteBuffer buf = ByteBuffer.allocate(e.diskLength);
+                        readFully(file, buf, e.diskOffset);
+                        buf.flip();
+                        write(next, buf, end);
+                        if (moved.size() == offsets.length) {
+                            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        }
+                        offsets[moved.size()] = end;
+                        moved.add(e);
+                        end += e.diskLength;
+                    }
+                }
+                if (!tmp.renameTo(path)) {                  // the old channel still reads the old file if this fails
+                    throw new IOException("Could not replace " + path);
+                }
+            } catch (IOException | RuntimeException ex) {
+                next.close();
+                tmp.delete();
+                throw ex;
+            }
+            for (int i = 0; i < moved.size(); i++) {
+                moved.get(i).diskOffset = offsets[i];
+            }
+            FileChannel old = file;
+            file = next;
+            fileEnd = end;
+            liveDiskBytes = end;
+            try {
+                old.close();                                // already unlinked by the rename
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+
+        void reset() {
+            index = new HashMap<String, Entry>();
+            clock = new ArrayList<Entry>();
+            hand = 0;
+            hotBytes = 0;
+            try {
+                file.truncate(0);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            fileEnd = 0;
+            liveDiskBytes = 0;
+        }
+    }
+
+    private static void readFully(FileChannel f, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = f.read(buf, pos);
+            if (n < 0) {
+                throw new EOFException("Cold value cut short at " + pos);
+            }
+            pos += n;
+        }
+    }
+
+    private static void write(FileChannel f, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            pos += f.write(buf, pos);
+        }
+    }
+}
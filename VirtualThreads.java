@@ -0,0 +1,61 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Virtual threads (Java 21) for --virtual-threads in StorageNode, A3Client and ConnectionBenchmark
+ *
+ * ... a thread that spends its request blocked on a socket doesn't need a platform thread (and its ~1 MB stack) of
+ * its own: a virtual thread parks instead, and a handful of carrier threads run whichever ones are ready. So a node
+ * can serve one thread per connection for tens of thousands of connections.
+ *
+ * Looked up by reflection so the code still builds and runs on older JDKs; there isAvailable() is false and asking
+ * for a factory throws IllegalStateException with a message that says why.
+ *
+ * The request paths wait with java.util.concurrent locks and latches, not synchronized + wait(), which would pin the
+ * virtual thread to its carrier for the whole wait (see ReplicationLog.awaitAppend, WriteAheadLog.awaitDurable).
+ */
+public class VirtualThreads {
+    private static Method ofVirtual;                // Thread.ofVirtual()
+    private static Method name;                     // Thread.Builder.name(String prefix, long start)
+    private static Method factory;                  // Thread.Builder.factory()
+    private static Method newThreadPerTaskExecutor; // Executors.newThreadPerTaskExecutor(ThreadFactory)
+
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;                       // before Java 21
+        }
+    }
+
+    public static boolean isAvailable() {
+        return ofVirtual != null;
+    }
+
+    // virtual threads named prefix0, prefix1, ...
+    public static ThreadFactory factory(String prefix) {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Virtual threads need Java 21, this is Java " + System.getProperty("java.version"));
+        }
+        try {
+            return (ThreadFactory) factory.invoke(name.invoke(ofVirtual.invoke(null), prefix, 0L));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create virtual threads", e);
+        }
+    }
+
+    // a new virtual thread for every task, nothing is pooled
+    public static ExecutorService perTaskExecutor(String prefix) {
+        try {
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory(prefix));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to create virtual threads", e);
+        }
+    }
+}
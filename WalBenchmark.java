@@ -0,0 +1,136 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Measures what each WriteAheadLog durability mode costs a put
+ *
+ * every thread does what KeyValueHandler.put does on the log side: append a record, then wait until it is durable
+ * prints throughput and latency percentiles per mode, plus the replay speed of what was written
+ *
+ * java WalBenchmark dir [--threads=8] [--seconds=5] [--value-size=100]
+ */
+public class WalBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Options opts = new Options(args);
+        if (opts.numPositional() != 1) {
+            System.err.println("Usage: java WalBenchmark dir [--threads=N] [--seconds=N] [--value-size=N]");
+            System.exit(-1);
+        }
+        File base = new File(opts.get(0));
+        int threads = opts.getInt("threads", 8);
+        int seconds = opts.getInt("seconds", 5);
+        int valueSize = opts.getInt("value-size", 100);
+
+        System.out.println("mode    threads  puts/s      avg(us)  p50(us)  p99(us)  p99.9(us)  max(us)");
+        for (WriteAheadLog.Durability mode : WriteAheadLog.Durability.values()) {
+            File dir = new File(base, "wal-bench-" + mode.name().toLowerCase());
+            deleteDir(dir);
+            run(mode, dir, threads, seconds, valueSize);
+        }
+    }
+
+    static void run(WriteAheadLog.Durability mode, File dir, int threads, int seconds, int valueSize) throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir, mode, 10);
+        wal.replay(new NullStore());
+
+        char[] chars = new char[valueSize];
+        Arrays.fill(chars, 'v');
+        String value = new String(chars);
+        AtomicInteger seq = new AtomicInteger();
+        long[][] latencies = new long[threads][];
+        int[] counts = new int[threads];
+        long end = System.nanoTime() + seconds * 1000000000L;
+
+        List<Thread> tlist = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread th = new Thread(() -> {
+                long[] lat = new long[1 << 16];
+                int n = 0;
+                Random rand = new Random(id);
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    long lsn = wal.appendPut(seq.incrementAndGet(), "key-" + rand.nextInt(1000000), value);
+                    wal.awaitDurable(lsn);
+                    if (n == lat.length) {
+                        lat = Arrays.copyOf(lat, lat.length * 2);
+                    }
+                    lat[n++] = (System.nanoTime() - start) / 1000;
+                }
+                latencies[id] = lat;
+                counts[id] = n;
+            });
+            tlist.add(th);
+            th.start();
+        }
+        for (Thread th : tlist) {
+            th.join();
+        }
+        wal.close();
+
+        int total = 0;
+        for (int c : counts) {
+            total += c;
+        }
+        long[] all = new long[total];
+        int pos = 0;
+        long sum = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, all, pos, counts[t]);
+            pos += counts[t];
+        }
+        for (long l : all) {
+            sum += l;
+        }
+        Arrays.sort(all);
+        System.out.println(String.format("%-7s %-8d %-11d %-8d %-8d %-8d %-10d %d", mode.name().toLowerCase(), threads, total / seconds,
+            total == 0 ? 0 : sum / total, pct(all, 0.5), pct(all, 0.99), pct(all, 0.999), total == 0 ? 0 : all[total - 1]));
+
+        // and how fast it comes back
+        long bytes = 0;
+        File[] files = dir.listFiles();
+        for (File f : (files == null) ? new File[0] : files) {
+            bytes += f.length();
+        }
+        NullStore counted = new NullStore();
+        WriteAheadLog again = new WriteAheadLog(dir, mode, 10);
+        long start = System.nanoTime();
+        again.replay(counted);
+        double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        again.close();
+        System.out.println(String.format("%-7s replay: %d records, %d MB in %.2f s = %.0f MB/s, %.0f records/s", mode.name().toLowerCase(),
+            counted.records, bytes >> 20, secs, bytes / secs / (1 << 20), counted.records / secs));
+    }
+
+    static long pct(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    // only counts what it is given
+    static class NullStore implements WriteAheadLog.Store {
+        long records;
+
+        public void replayPut(int seq, String key, String value) { records++; }
+        public void replayEntry(int seq, String key, String value) { records++; }
+        public void replayReset() {}
+        public void replayJoin(long logId, int baseSeq) {}
+        public void forEachEntry(WriteAheadLog.EntryConsumer consumer) {}
+        public long followingLogId() { return 0; }
+        public int appliedWatermark() { return -1; }
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.*;
+
+/*
+ * What A3Client sends: the mix of reads and writes, which keys, and how big the values are
+ *
+ *   --read-ratio=F          fraction of operations that are reads (default 0.5)
+ *   --keys=uniform          every key of the key space equally likely (default)
+ *   --keys=zipf             Zipfian popularity with --zipf-theta (default 0.99, like YCSB); the ranks are scrambled
+ *                           so the popular keys are spread over the key space (and over the shards)
+ *   --keys=hotspot          --hot-ops (default 0.8) of the operations go to --hot-keys (default 0.2) of the key space
+ *   --value-size=N          every value N bytes (default: small "value-<random>" strings, like before)
+ *   --value-size=MIN-MAX    uniform between MIN and MAX bytes
+ *   --value-size=exp:MEAN   exponential with the given mean, a few big values among many small ones
+ *
+ * Thread safe as long as every thread passes its own Random.
+ */
+public class Workload {
+    private int keySpaceSize;
+    private double readRatio;
+    private String keyDist;
+    private String valueDist;
+
+    // zipf
+    private double theta;
+    private double zetan;
+    private double alpha;
+    private double eta;
+
+    // hotspot
+    private int hotKeys;
+    private double hotOps;
+
+    // value sizes, 0 = old style values
+    private int minSize;
+    private int maxSize;
+    private double meanSize;
+
+    public Workload(Options opts, int keySpaceSize) {
+        this.keySpaceSize = keySpaceSize;
+        this.readRatio = opts.getDouble("read-ratio", 0.5);
+        this.keyDist = opts.getString("keys", "uniform");
+        this.valueDist = opts.getString("value-size", "");
+
+        if (keyDist.equals("zipf")) {
+            theta = opts.getDouble("zipf-theta", 0.99);
+            if (theta <= 0 || theta == 1) {
+                throw new IllegalArgumentException("--zipf-theta must be > 0 and != 1");
+            }
+            zetan = zeta(keySpaceSize, theta);
+            alpha = 1.0 / (1.0 - theta);
+            eta = (1 - Math.pow(2.0 / keySpaceSize, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        } else if (keyDist.equals("hotspot")) {
+            hotKeys = Math.max(1, (int) (keySpaceSize * opts.getDouble("hot-keys", 0.2)));
+            hotOps = opts.getDouble("hot-ops", 0.8);
+        } else if (!keyDist.equals("uniform")) {
+            throw new IllegalArgumentException("Unknown key distribution: " + keyDist);
+        }
+
+        if (valueDist.startsWith("exp:")) {
+            meanSize = Double.parseDouble(valueDist.substring(4));
+        } else if (valueDist.contains("-")) {
+            String[] range = valueDist.split("-");
+            minSize = Integer.parseInt(range[0]);
+            maxSize = Integer.parseInt(range[1]);
+        } else if (!valueDist.isEmpty()) {
+            minSize = maxSize = Integer.parseInt(valueDist);
+        }
+    }
+
+    static double zeta(long n, double theta) {
+        double sum = 0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    public boolean nextIsRead(Random rand) {
+        return rand.nextDouble() < readRatio;
+    }
+
+    public String nextKey(Random rand) {
+        long k;
+        if (keyDist.equals("zipf")) {
+            // Gray et al., "Quickly generating billion-record synthetic databases" (same as YCSB's ZipfianGenerator)
+            double u = rand.nextDouble();
+            double uz = u * zetan;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, theta)) {
+                rank = 1;
+            } else {
+                rank = (long) (keySpaceSize * Math.pow(eta * u - eta + 1, alpha));
+            }
+            k = Math.floorMod(ShardRouter.hash(Long.toString(rank)), (long) keySpaceSize);
+        } else if (keyDist.equals("hotspot")) {
+            if (rand.nextDouble() < hotOps || hotKeys == keySpaceSize) {
+                k = rand.nextInt(hotKeys);
+            } else {
+                k = hotKeys + rand.nextInt(keySpaceSize - hotKeys);
+            }
+        } else {
+            k = Math.abs(rand.nextLong()) % keySpaceSize;
+        }
+        return "key-" + k;
+    }
+
+    public String nextValue(Random rand) {
+        String value = "value-" + Math.abs(rand.nextLong());           // unique prefix, the linearizability checker needs it
+        int size;
+        if (meanSize > 0) {
+            size = (int) Math.min(Integer.MAX_VALUE / 2, -meanSize * Math.log(1 - rand.nextDouble()));
+        } else if (maxSize > 0) {
+            size = minSize + rand.nextInt(maxSize - minSize + 1);
+        } else {
+            return value;
+        }
+        if (size <= value.length()) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(size).append(value);
+        while (sb.length() < size) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    public String describe() {
+        String keys = keyDist;
+        if (keyDist.equals("zipf")) {
+            keys += "(theta=" + theta + ")";
+        } else if (keyDist.equals("hotspot")) {
+            keys += "(" + hotOps + " of ops on " + hotKeys + " keys)";
+        }
+        return "read-ratio=" + readRatio + " keys=" + keys + " value-size=" + (valueDist.isEmpty() ? "default" : valueDist);
+    }
+}
@@ -0,0 +1,497 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+ * The purpose of this class is to keep a StorageNode's data on local disk, so a node that restarts (or a whole
+ * replica group that goes down) comes back with its data instead of empty
+ *
+ * Layout of the data directory:
+ *   wal-<n>.log    append-only log segments, every write the node applies is appended here
+ *   snapshot.dat   compact dump of the whole map, taken every now and then; replay starts from it and then
+ *                  runs the segments that were started after it
+ *
+ * Log record: [int length][int crc32][byte type][payload]   (length = 4 + 1 + payload, crc over type + payload)
+ *   PUT   payload = [int seq][int keyLen][key utf8][value utf8]
+ *   RESET payload = (empty)                                  the map was wiped before a full snapshot transfer
+ *   JOIN  payload = [long logId][int baseSeq]                we started following a primary's replication log
+ *
+ * Durability modes:
+ *   ASYNC  records are written to the OS and fsync'ed every flushIntervalMs in the background, a put never waits
+ *   GROUP  a put waits until an fsync covers its record, one flusher thread fsyncs for everyone who is waiting
+ *   SYNC   every record is fsync'ed on its own before the put returns
+ *
+ * Startup replay memory-maps the snapshot and the segments and reads them sequentially, so it is bounded by disk bandwidth.
+ * A torn record at the end of the last segment (crash in the middle of a write) is cut off.
+ */
+public class WriteAheadLog {
+    public enum Durability { ASYNC, GROUP, SYNC }
+
+    static final byte PUT = 0;
+    static final byte RESET = 1;
+    static final byte JOIN = 2;
+
+    static final long SNAPSHOT_MAGIC = 0x4b56534e41503031L;         // "KVSNAP01"
+    static final int MAP_WINDOW = 1 << 30;                           // map big files 1 GB at a time
+
+    // what the log replays into, and what a checkpoint reads from
+    public interface Store {
+        void replayPut(int seq, String key, String value);
+        void replayEntry(int seq, String key, String value);        // from snapshot.dat, its watermark is the JOIN after them
+        void replayReset();
+        void replayJoin(long logId, int baseSeq);
+
+        // for checkpoints: hand every entry of the live map to the consumer, and tell which log we follow right now
+        void forEachEntry(EntryConsumer consumer) throws IOException;
+        long followingLogId();
+        int appliedWatermark();
+    }
+
+    public interface EntryConsumer {
+        void accept(int seq, String key, String value) throws IOException;
+    }
+
+    private File dir;
+    private Durability durability;
+    private long flushIntervalMs;
+
+    private FileChannel channel;
+    private int segment;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private long written;                                            // bytes handed to this log (the LSN of the last record)
+    private long flushed;                                            // bytes written to the channel
+    private volatile long durable;                                   // bytes covered by an fsync
+    private final ReentrantLock durableLock = new ReentrantLock();    // writers wait for `durable` here, not on the monitor,
+    private final Condition durableChanged = durableLock.newCondition();    // so a virtual thread doesn't pin its carrier
+    private boolean flushRequested;
+    private volatile boolean closed;
+    private CRC32 crc = new CRC32();
+
+    public WriteAheadLog(File dir, Durability durability, long flushIntervalMs) {
+        this.dir = dir;
+        this.durability = durability;
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /*
+     * load snapshot.dat and every segment after it into the store, then open a fresh segment for new records
+     * returns the highest sequence number seen
+     */
+    public int replay(Store store) throws IOException {
+        dir.mkdirs();
+        long start = System.nanoTime();
+        int maxSeq = 0;
+        int firstSegment = 0;
+        long bytes = 0;
+
+        File snap = new File(dir, "snapshot.dat");
+        if (snap.exists()) {
+            try (FileChannel ch = FileChannel.open(snap.toPath(), StandardOpenOption.READ)) {
+                bytes += ch.size();
+                MappedReader r = new MappedReader(ch);
+                if (r.getLong() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a snapshot file: " + snap);
+                }
+                firstSegment = r.getInt();
+                long logId = r.getLong();
+                int watermark = r.getInt();
+                long count = r.getLong();
+                for (long i = 0; i < count; i++) {
+                    int seq = r.getInt();
+                    String key = r.getString(r.getInt());
+                    String value = r.getString(r.getInt());
+                    store.replayEntry(seq, key, value);
+                    maxSeq = Math.max(maxSeq, seq);
+                }
+                store.replayJoin(logId, watermark);
+            }
+        }
+
+        List<Integer> segments = listSegments();
+        for (int n : segments) {
+            if (n < firstSegment) {
+                continue;
+            }
+            File f = segmentFile(n);
+            try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                bytes += ch.size();
+                long good = replaySegment(ch, store);
+                if (good < ch.size()) {
+                    System.out.println("WAL: cutting torn tail of " + f + " at " + good + " of " + ch.size() + " bytes");
+                    ch.truncate(good);
+                }
+                maxSeq = Math.max(maxSeq, lastReplayedMaxSeq);
+            }
+        }
+
+        segment = segments.isEmpty() ? firstSegment : Math.max(firstSegment, segments.get(segments.size() - 1) + 1);
+        openSegment();
+        startFlusher();
+
+        double secs = (System.nanoTime() - start) / 1e9;
+        System.out.println("WAL: replayed " + (bytes >> 20) + " MB in " + String.format("%.2f", secs) + " s ("
+            + String.format("%.0f", bytes / secs / (1 << 20)) + " MB/s), max sequence " + maxSeq);
+        return maxSeq;
+    }
+
+    private int lastReplayedMaxSeq;
+
+    private long replaySegment(FileChannel ch, Store store) throws IOException {
+        MappedReader r = new MappedReader(ch);
+        CRC32 check = new CRC32();
+        lastReplayedMaxSeq = 0;
+        long good = 0;
+        while (r.remaining() >= 4) {
+            int length = r.getInt();
+            if (length < 5 || r.remaining() < length) {
+                break;
+            }
+            int expected = r.getInt();
+            byte[] body = r.getBytes(length - 4);
+            check.reset();
+            check.update(body, 0, body.length);
+            if ((int) check.getValue() != expected) {
+                break;
+            }
+            ByteBuffer b = ByteBuffer.wrap(body);
+            byte type = b.get();
+            if (type == PUT) {
+                int seq = b.getInt();
+                int keyLen = b.getInt();
+                String key = new String(body, 9, keyLen, StandardCharsets.UTF_8);
+                String value = new String(body, 9 + keyLen, body.length - 9 - keyLen, StandardCharsets.UTF_8);
+                store.replayPut(seq, key, value);
+                lastReplayedMaxSeq = Math.max(lastReplayedMaxSeq, seq);
+            } else if (type == RESET) {
+                store.replayReset();
+            } else if (type == JOIN) {
+                store.replayJoin(b.getLong(), b.getInt());
+            }
+            good = r.position();
+        }
+        return good;
+    }
+
+    public long appendPut(int seq, String key, String value) {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        byte[] v = value.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer rec = ByteBuffer.allocate(1 + 4 + 4 + k.length + v.length);
+        rec.put(PUT).putInt(seq).putInt(k.length).put(k).put(v);
+        return append(rec.array());
+    }
+
+    public long appendReset() {
+        return append(new byte[] { RESET });
+    }
+
+    public long appendJoin(long logId, int baseSeq) {
+        ByteBuffer rec = ByteBuffer.allocate(1 + 8 + 4);
+        rec.put(JOIN).putLong(logId).putInt(baseSeq);
+        return append(rec.array());
+    }
+
+    // returns the LSN of the record, pass it to awaitDurable()
+    private synchronized long append(byte[] body) {
+        crc.reset();
+        crc.update(body, 0, body.length);
+        int length = 4 + body.length;
+        if (buffer.remaining() < 4 + length) {
+            flushBuffer();
+            if (buffer.capacity() < 4 + length) {
+                buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(4 + length) << 1);
+            }
+        }
+        buffer.putInt(length).putInt((int) crc.getValue()).put(body);
+        written += 4 + length;
+
+        if (durability == Durability.SYNC) {
+            flushBuffer();
+            force();
+        } else if (durability == Durability.GROUP) {
+            flushRequested = true;
+            notifyAll();
+        }
+        return written;
+    }
+
+    // block until an fsync covers the record with this LSN (returns right away in ASYNC mode)
+    public void awaitDurable(long lsn) {
+        if (durability == Durability.ASYNC || durable >= lsn) {
+            return;
+        }
+        durableLock.lock();
+        try {
+            while (durable < lsn && !closed) {
+                durableChanged.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    private void signalDurable() {
+        durableLock.lock();
+        try {
+            durableChanged.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    // caller holds the lock
+    private void flushBuffer() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("WAL write failed", e);
+        }
+        buffer.clear();
+        flushed = written;
+    }
+
+    // caller holds the lock
+    private void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("WAL fsync failed", e);
+        }
+        durable = flushed;
+        signalDurable();
+    }
+
+    /*
+     * one thread does the fsyncs: in GROUP mode as soon as somebody is waiting (everyone who appended in the meantime
+     * rides along), in ASYNC mode every flushIntervalMs
+     */
+    private void startFlusher() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                while (!closed) {
+                    FileChannel ch;
+                    long target;
+                    synchronized (WriteAheadLog.this) {
+                        try {
+                            if (durability == Durability.GROUP) {
+                                while (!flushRequested && !closed) {
+                                    WriteAheadLog.this.wait();
+                                }
+                            } else {
+                                WriteAheadLog.this.wait(flushIntervalMs);
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        flushRequested = false;                 // before the check: a request with nothing left to do
+                        if (closed || written == durable) {     // (a checkpoint forced it already) would spin otherwise
+                            continue;
+                        }
+                        flushBuffer();
+                        ch = channel;
+                        target = flushed;
+                    }
+                    // fsync outside the lock so appenders can keep filling the buffer for the next group
+                    try {
+                        ch.force(false);
+                    } catch (java.nio.channels.ClosedChannelException e) {
+                        continue;                               // a checkpoint switched segments, it did the fsync itself
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        continue;
+                    }
+                    synchronized (WriteAheadLog.this) {
+                        if (target > durable) {
+                            durable = target;
+                        }
+                    }
+                    signalDurable();
+                }
+            }
+        }, "wal-flusher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /*
+     * write a new snapshot.dat and drop the segments it makes obsolete
+     * new records go to a new segment from here on; the snapshot reads the live map afterwards, so anything that is
+     * only in the old segments is already in the map (writes are applied to the map before they are logged)
+     */
+    public void checkpoint(Store store) throws IOException {
+        long start = System.nanoTime();
+        int snapSegment;
+        synchronized (this) {
+            flushBuffer();
+            force();
+            channel.close();
+            segment++;
+            snapSegment = segment;
+            openSegment();
+        }
+        long logId = store.followingLogId();
+        int watermark = store.appliedWatermark();
+
+        File tmp = new File(dir, "snapshot.tmp");
+        long[] count = new long[1];
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+            out.putLong(SNAPSHOT_MAGIC).putInt(snapSegment).putLong(logId).putInt(watermark).putLong(0);
+            store.forEachEntry(new EntryConsumer() {
+                public void accept(int seq, String key, String value) throws IOException {
+                    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+                    byte[] v = value.getBytes(StandardCharsets.UTF_8);
+                    if (out.remaining() < 12 + k.length + v.length) {
+                        drain(ch, out);
+                    }
+                    if (out.remaining() < 12 + k.length + v.length) {
+                        writeFully(ch, ByteBuffer.wrap(ByteBuffer.allocate(12 + k.length + v.length)
+                            .putInt(seq).putInt(k.length).put(k).putInt(v.length).put(v).array()));
+                    } else {
+                        out.putInt(seq).putInt(k.length).put(k).putInt(v.length).put(v);
+                    }
+                    count[0]++;
+                }
+            });
+            drain(ch, out);
+            // now that we know how many entries there are, fill in the count in the header
+            ByteBuffer c = ByteBuffer.allocate(8);
+            c.putLong(count[0]).flip();
+            ch.write(c, 8 + 4 + 8 + 4);
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, "snapshot.dat").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (int n : listSegments()) {
+            if (n < snapSegment) {
+                segmentFile(n).delete();
+            }
+        }
+        System.out.println("WAL: checkpoint of " + count[0] + " entries in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    public synchronized void close() {
+        closed = true;
+        try {
+            flushBuffer();
+            force();
+            channel.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        notifyAll();
+        signalDurable();
+    }
+
+    private void openSegment() throws IOException {
+        channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private File segmentFile(int n) {
+        return new File(dir, "wal-" + n + ".log");
+    }
+
+    private List<Integer> listSegments() {
+        List<Integer> ret = new ArrayList<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith("wal-") && name.endsWith(".log")) {
+                    ret.add(Integer.parseInt(name.substring(4, name.length() - 4)));
+                }
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static void drain(FileChannel ch, ByteBuffer out) throws IOException {
+        out.flip();
+        writeFully(ch, out);
+        out.clear();
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b) throws IOException {
+        while (b.hasRemaining()) {
+            ch.write(b);
+        }
+    }
+
+    /*
+     * sequential reader over a memory-mapped file, remaps a new window when a read would cross the end of the current one
+     */
+    static class MappedReader {
+        private FileChannel ch;
+        private long size;
+        private long base;                              // file offset of the current window
+        private MappedByteBuffer window;
+
+        MappedReader(FileChannel ch) throws IOException {
+            this.ch = ch;
+            this.size = ch.size();
+            map(0);
+        }
+
+        private void map(long offset) throws IOException {
+            base = offset;
+            window = ch.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_WINDOW, size - offset));
+        }
+
+        private void ensure(int n) throws IOException {
+            if (window.remaining() < n) {
+                if (size - position() < n) {
+                    throw new EOFException();
+                }
+                map(position());
+            }
+        }
+
+        long position() {
+            return base + window.position();
+        }
+
+        long remaining() {
+            return size - position();
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return window.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return window.getLong();
+        }
+
+        byte[] getBytes(int n) throws IOException {
+            byte[] b = new byte[n];
+            if (n <= MAP_WINDOW) {
+                ensure(n);
+                window.get(b);
+            } else {
+                throw new IOException("Record too large: " + n);
+            }
+            return b;
+        }
+
+        String getString(int n) throws IOException {
+            return new String(getBytes(n), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -7,11 +7,97 @@
 #   void setMap(1: list<string> keys, 2: list<string> values);
 # }
 
+# answer to joinAsBackup: which replication log the backup now follows, and whether it got only the missed writes
+struct JoinResult {
+  1: i64 logId,
+  2: i32 baseSeq,
+  3: bool incremental
+}
+
+# near-cache (see NearCache): a value with the sequence number of the write that produced it (0 = missing key)
+struct VersionedValue {
+  1: string value,
+  2: i32 seq
+}
+
+# answer to awaitInvalidations: every key written in (afterSeq, seq], with the sequence of its last write there;
+# reset = the primary can't tell (new primary term, or the writes are no longer in its log), drop everything;
+# more = the answer was cut off at seq, there are later writes already: ask again right away before trusting the cache
+struct Invalidations {
+  1: i64 logId,
+  2: i32 seq,
+  3: list<string> keys,
+  4: list<i32> sequences,
+  5: bool reset,
+  6: bool more
+}
+
+# one page of a range scan: keys in order with their values; cursor = where the next page starts ("" = no more pages)
+struct ScanResult {
+  1: list<string> keys,
+  2: list<string> values,
+  3: string cursor
+}
+
+# admission control (see AdmissionController): the node is at its concurrency limit and didn't run the request;
+# retry after about retryAfterMs (add jitter), the request is safe to resend even if it isn't idempotent
+exception Overloaded {
+  1: string reason,
+  2: i32 retryAfterMs
+}
+
+# incrementBy on a value that isn't a decimal long, or a result that overflows; nothing was written and asking again
+# gives the same answer, so clients don't retry it
+exception InvalidOperation {
+  1: string reason
+}
+
 service KeyValueService {
-  string get(1: string key);
-  void put(1: string key, 2: string value);
+  string get(1: string key) throws (1: Overloaded overloaded);
+  void put(1: string key, 2: string value) throws (1: Overloaded overloaded);
   bool ping();
   void forwardRequest(1: string key, 2: string value, 3: i32 sequence);
   void completeDataTransfer(1: string host, 2: i32 port);
   void setMap(1: list<string> keys, 2: list<string> values);
+
+  # batch operations: one round trip for many keys, and one forward to the backup per batch
+  list<string> multiGet(1: list<string> keys) throws (1: Overloaded overloaded);
+  void multiPut(1: map<string, string> entries) throws (1: Overloaded overloaded);
+  void forwardBatch(1: list<string> keys, 2: list<string> values, 3: list<i32> sequences);
+
+  # one chunk of a snapshot transfer, every entry carries the sequence number of the write that produced it
+  void setMapChunk(1: list<string> keys, 2: list<string> values, 3: list<i32> sequences);
+
+  # a (re)joining backup asks the primary for the writes after lastSeq of log logId, or a full snapshot if they are gone
+  JoinResult joinAsBackup(1: string host, 2: i32 port, 3: i64 logId, 4: i32 lastSeq);
+  void resetMap();
+
+  # backup -> primary: may the backup host:port answer get? returns the lease length in ms, 0 = no
+  i64 requestLease(1: string host, 2: i32 port);
+
+  # counters, latency percentiles and replication lag of this node, e.g. "put.p99Us" -> 412 (see KeyValueHandler.getStats)
+  map<string, i64> getStats();
+
+  # compression between replicas (see FrameCodec): the sender proposes a codec and a preset dictionary once, returns 1 if
+  # the receiver accepts; frames and snapshot chunks then travel packed and compressed instead of as string lists
+  i32 negotiateCompression(1: string codec, 2: i32 dictId, 3: binary dictionary);
+  void forwardCompressed(1: binary frame);
+  void setMapChunkCompressed(1: binary chunk);
+
+  # near-cache: get with versions, and a long poll on the primary that returns as soon as keys were written after
+  # afterSeq of log logId (or after maxWaitMs with no keys)
+  VersionedValue getVersioned(1: string key) throws (1: Overloaded overloaded);
+  Invalidations awaitInvalidations(1: i64 logId, 2: i32 afterSeq, 3: i32 maxWaitMs);
+
+  # range scan over the ordered index (the nodes need --index=ordered): keys in [startKey, endKey) (endKey "" = no
+  # upper bound), at most limit per page; cursor "" for the first page, then the cursor of the page before
+  ScanResult scan(1: string startKey, 2: string endKey, 3: i32 limit, 4: string cursor) throws (1: Overloaded overloaded);
+
+  # atomic read-modify-write on the primary, replicated as the resulting value (like a put of it)
+  # compareAndSet: expected "" matches a missing key; true if newValue was written
+  # incrementBy: the value as a decimal long (missing = 0) plus delta, returns the new value
+  # append: returns the length of the new value
+  bool compareAndSet(1: string key, 2: string expected, 3: string newValue) throws (1: Overloaded overloaded);
+  i64 incrementBy(1: string key, 2: i64 delta) throws (1: Overloaded overloaded, 2: InvalidOperation invalid);
+  i32 append(1: string key, 2: string suffix) throws (1: Overloaded overloaded);
 }
@@ -0,0 +1,35 @@
+#!/bin/bash
+
+#
+# JMH microbenchmarks of the server hot paths (sources in bench/)
+#
+# needs the JMH jars in lib/: jmh-core, jmh-generator-annprocess, jopt-simple, commons-math3
+#
+#   ./bench.sh                                  all benchmarks with 1, 4 and 16 threads
+#   THREADS="4" ./bench.sh HandlerBenchmark.put -p backup=loopback
+#   BASELINE=old-results ./bench.sh             also compare with the bench-t*.csv files in old-results/
+#
+# extra arguments are passed to JMH (benchmark regexp, -p param=values, -f, -wi, ...)
+#
+
+source settings.sh
+
+./build.sh || exit 1
+
+export CLASSPATH=".:gen-java:lib/*"
+
+echo --- Compiling benchmarks
+rm -fr bench-classes
+mkdir bench-classes
+$JAVA_HOME/bin/javac -d bench-classes bench/*.java || exit 1
+
+THREADS=${THREADS:-"1 4 16"}
+STATUS=0
+for t in $THREADS; do
+    echo --- Running with $t thread\(s\)
+    $JAVA_HOME/bin/java -cp "bench-classes:$CLASSPATH" org.openjdk.jmh.Main -t $t -rf csv -rff bench-t$t.csv "$@" || exit 1
+    if [ -n "$BASELINE" ] && [ -f $BASELINE/bench-t$t.csv ]; then
+        $JAVA_HOME/bin/java -cp bench-classes BenchCompare $BASELINE/bench-t$t.csv bench-t$t.csv || STATUS=1
+    fi
+done
+exit $STATUS
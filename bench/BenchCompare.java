@@ -0,0 +1,82 @@
+import java.io.*;
+import java.util.*;
+
+/*
+ * Compares two JMH result files (-rf csv) and lists every benchmark that got worse by more than the tolerance
+ *
+ *   java BenchCompare baseline.csv current.csv [tolerance, default 0.10]
+ *
+ * rows are matched on benchmark + mode + threads + params; throughput modes must not drop, time modes must not rise.
+ * Exit code 1 if anything regressed, so a script can stop on it.
+ */
+public class BenchCompare {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: java BenchCompare baseline.csv current.csv [tolerance]");
+            System.exit(-1);
+        }
+        double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) : 0.10;
+        Map<String, Double> baseline = read(args[0]);
+        Map<String, Double> current = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, Double> e : current.entrySet()) {
+            Double before = baseline.get(e.getKey());
+            if (before == null || before == 0) {
+                continue;
+            }
+            double change = (e.getValue() - before) / before;
+            boolean higherIsBetter = e.getKey().contains("thrpt");
+            boolean worse = higherIsBetter ? change < -tolerance : change > tolerance;
+            System.out.println(String.format("%s %-80s %12.3f -> %12.3f  %+6.1f%%", worse ? "REGRESSED" : "ok       ", e.getKey(), before, e.getValue(), change * 100));
+            if (worse) {
+                regressions++;
+            }
+        }
+        System.out.println(regressions + " regression(s) beyond " + (int) (tolerance * 100) + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    // key = every column but Samples / Score / Score Error / Unit, value = Score
+    static Map<String, Double> read(String file) throws IOException {
+        Map<String, Double> rows = new LinkedHashMap<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            List<String> header = split(in.readLine());
+            String line;
+            while ((line = in.readLine()) != null) {
+                List<String> cols = split(line);
+                StringBuilder key = new StringBuilder();
+                double score = 0;
+                for (int i = 0; i < cols.size() && i < header.size(); i++) {
+                    String h = header.get(i);
+                    if (h.equals("Score")) {
+                        score = Double.parseDouble(cols.get(i));
+                    } else if (!h.equals("Samples") && !h.startsWith("Score Error") && !h.equals("Unit")) {
+                        key.append(key.length() == 0 ? "" : " ").append(h.startsWith("Param: ") ? h.substring(7) + "=" : "").append(cols.get(i));
+                    }
+                }
+                rows.put(key.toString(), score);
+            }
+        }
+        return rows;
+    }
+
+    static List<String> split(String line) {
+        List<String> cols = new ArrayList<>();
+        StringBuilder col = new StringBuilder();
+        boolean quoted = false;
+        for (char c : line.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                cols.add(col.toString());
+                col.setLength(0);
+            } else {
+                col.append(c);
+            }
+        }
+        cols.add(col.toString());
+        return cols;
+    }
+}
@@ -0,0 +1,79 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * KeyValueHandler side of bench.HandlerBenchmark (see bench.HandlerTarget for why this is split in two)
+ */
+public class HandlerBenchTarget implements bench.HandlerTarget {
+    KeyValueHandler primary;
+    KeyValueHandler backupHandler;
+    LoopbackServer backupServer;
+    String[] keys;
+    String value;
+    int chunk;
+    List<String> chunkValues;
+    AtomicInteger forwardSeq = new AtomicInteger();
+
+    public void setup(String store, String backup, int keySpace, int valueSize, int chunk) throws Exception {
+        keys = new String[keySpace];
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = "key-" + i;
+        }
+        char[] chars = new char[valueSize];
+        Arrays.fill(chars, 'v');
+        value = new String(chars);
+        this.chunk = chunk;
+        chunkValues = Collections.nCopies(chunk, value);
+
+        primary = newHandler(store, 9090);
+        primary.setState(State.PRIMARY);
+        primary.setIsAlone(true);
+        for (String key : keys) {
+            primary.put(key, value);
+        }
+
+        backupHandler = newHandler(store, 9091);
+        backupHandler.setState(State.BACKUP);
+        if (backup.equals("loopback")) {
+            backupServer = new LoopbackServer(backupHandler);
+            primary.completeDataTransfer("localhost", backupServer.getPort());
+        }
+    }
+
+    KeyValueHandler newHandler(String store, int port) throws java.io.IOException {
+        return new KeyValueHandler("localhost", port, null, "/bench", StorageEngine.create(store), new Manager(64, 1000, 60000, 0), 4, 512);
+    }
+
+    public void tearDown() {
+        if (backupServer != null) {
+            backupServer.stop();
+        }
+    }
+
+    public String get(int key) throws Exception {
+        return primary.get(keys[key]);
+    }
+
+    public void put(int key) throws Exception {
+        primary.put(keys[key], value);
+    }
+
+    public void forwardRequest(int key) {
+        backupHandler.forwardRequest(keys[key], value, forwardSeq.incrementAndGet());
+    }
+
+    public void setMap(int start) {
+        backupHandler.setMap(Arrays.asList(keys).subList(start, Math.min(keys.length, start + chunk)), chunkValues);
+    }
+
+    // fresh sequence numbers every time, so every entry is really applied
+    public void setMapChunk(int start) {
+        List<String> chunkKeys = Arrays.asList(keys).subList(start, Math.min(keys.length, start + chunk));
+        int base = forwardSeq.addAndGet(chunkKeys.size());
+        List<Integer> sequences = new ArrayList<Integer>(chunkKeys.size());
+        for (int i = 0; i < chunkKeys.size(); i++) {
+            sequences.add(base - i);
+        }
+        backupHandler.setMapChunk(chunkKeys, chunkValues, sequences);
+    }
+}
@@ -0,0 +1,84 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Hot paths of KeyValueHandler, called in-process (no client RPC in the way), see HandlerBenchTarget
+ *
+ *   get / put            on a primary; backup=none -> primary alone, backup=loopback -> every put is replicated
+ *                        to a second handler served over localhost (ReplicationPipeline + forwardBatch)
+ *   forwardRequest       on a backup, what every forwarded write costs there
+ *   setMap / setMapChunk on a backup, one snapshot chunk of CHUNK entries (scores are per entry)
+ *
+ * keySpace, valueSize and store are JMH parameters, the thread count is JMH's -t (bench.sh runs 1, 4 and 16).
+ * The map is filled with every key before measuring, so gets always hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandlerBenchmark {
+    static final int CHUNK = 1000;
+
+    @Param({"1000", "1000000"})
+    int keySpace;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    @Param({"none", "loopback"})
+    String backup;
+
+    @Param({"heap"})
+    String store;
+
+    HandlerTarget target;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        target = HandlerTarget.load("HandlerBenchTarget", HandlerTarget.class);
+        target.setup(store, backup, keySpace, valueSize, CHUNK);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        target.tearDown();
+    }
+
+    int randomKey() {
+        return ThreadLocalRandom.current().nextInt(keySpace);
+    }
+
+    @Benchmark
+    public String get() throws Exception {
+        return target.get(randomKey());
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        target.put(randomKey());
+    }
+
+    @Benchmark
+    public void forwardRequest() {
+        target.forwardRequest(randomKey());
+    }
+
+    // the old single-RPC transfer (keys already present are skipped, which is the common case after the first call)
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public void setMap() {
+        target.setMap(ThreadLocalRandom.current().nextInt(Math.max(1, keySpace - CHUNK)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public void setMapChunk() {
+        target.setMapChunk(ThreadLocalRandom.current().nextInt(Math.max(1, keySpace - CHUNK)));
+    }
+}
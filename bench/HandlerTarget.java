@@ -0,0 +1,28 @@
+package bench;
+
+/*
+ * JMH won't generate benchmarks in the default package, and a named package can't see the default package where all
+ * of our classes live. So the benchmarks (package bench) only know these interfaces, and the implementations
+ * (HandlerBenchTarget, ManagerBenchTarget, default package) are loaded by name. One interface call per operation.
+ */
+public interface HandlerTarget {
+
+    void setup(String store, String backup, int keySpace, int valueSize, int chunk) throws Exception;
+
+    void tearDown();
+
+    String get(int key) throws Exception;
+
+    void put(int key) throws Exception;
+
+    void forwardRequest(int key);
+
+    // one snapshot chunk of keys [start, start + chunk)
+    void setMap(int start);
+
+    void setMapChunk(int start);
+
+    static <T> T load(String className, Class<T> type) throws Exception {
+        return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+    }
+}
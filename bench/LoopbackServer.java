@@ -0,0 +1,39 @@
+import org.apache.thrift.*;
+import org.apache.thrift.server.*;
+import org.apache.thrift.transport.*;
+import org.apache.thrift.protocol.*;
+
+/*
+ * A KeyValueHandler served over localhost, so a benchmark has a real backup without depending on the network
+ * (same framed binary protocol as StorageNode, on a free port)
+ */
+public class LoopbackServer {
+    TServer server;
+    int port;
+
+    public LoopbackServer(KeyValueService.Iface handler) throws TTransportException {
+        TServerSocket socket = new TServerSocket(0);
+        this.port = socket.getServerSocket().getLocalPort();
+        TThreadPoolServer.Args sargs = new TThreadPoolServer.Args(socket);
+        sargs.protocolFactory(new TBinaryProtocol.Factory());
+        sargs.transportFactory(new TFramedTransport.Factory());
+        sargs.processorFactory(new TProcessorFactory(new KeyValueService.Processor<KeyValueService.Iface>(handler)));
+        sargs.maxWorkerThreads(256);
+        this.server = new TThreadPoolServer(sargs);
+
+        Thread t = new Thread(() -> server.serve(), "loopback-server-" + port);
+        t.setDaemon(true);
+        t.start();
+        while (!server.isServing()) {
+            Thread.yield();
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void stop() {
+        server.stop();
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Manager side of bench.ManagerBenchmark (see bench.HandlerTarget for why this is split in two)
+ */
+public class ManagerBenchTarget implements bench.PoolTarget {
+    Manager manager;
+    LoopbackServer server;
+
+    public void setup(int poolSize) throws Exception {
+        KeyValueHandler handler = new KeyValueHandler("localhost", 9092, null, "/bench");
+        handler.setState(State.PRIMARY);
+        server = new LoopbackServer(handler);
+        manager = new Manager(poolSize, 10000, 60000, 0);
+        manager.prewarm("localhost", server.getPort(), poolSize);
+    }
+
+    public void tearDown() {
+        System.out.println(manager.getMetrics());
+        server.stop();
+    }
+
+    public Object popAndAdd() throws Exception {
+        Connection c = manager.popConnection("localhost", server.getPort());
+        manager.addConnection(c);
+        return c;
+    }
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Manager.popConnection / addConnection under contention: every benchmark thread borrows a connection to the same
+ * destination and gives it back, with more threads than connections (-t above poolSize) the semaphore wait shows up
+ * Connections go to a LoopbackServer and are prewarmed, so no socket is opened while measuring (see ManagerBenchTarget)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ManagerBenchmark {
+
+    @Param({"4", "32"})
+    int poolSize;
+
+    PoolTarget target;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        target = HandlerTarget.load("ManagerBenchTarget", PoolTarget.class);
+        target.setup(poolSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        target.tearDown();
+    }
+
+    @Benchmark
+    public Object popAndAdd() throws Exception {
+        return target.popAndAdd();
+    }
+}
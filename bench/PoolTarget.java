@@ -0,0 +1,11 @@
+package bench;
+
+// see HandlerTarget
+public interface PoolTarget {
+
+    void setup(int poolSize) throws Exception;
+
+    void tearDown();
+
+    Object popAndAdd() throws Exception;
+}
@@ -8,4 +8,5 @@ export CLASSPATH=".:lib/*"
 
 echo --- Creating ZooKeeper node
 ./build.sh
-$JAVA_HOME/bin/java CreateZNode $ZKSTRING /$USER
+# ZNODES=/$USER-0,/$USER-1 ./createznode.sh creates one node per replica group
+$JAVA_HOME/bin/java CreateZNode $ZKSTRING ${ZNODES:-/$USER}
@@ -6,9 +6,12 @@ JAVA_CC=$JAVA_HOME/bin/javac
 export CLASSPATH=".:gen-java:lib/*"
 
 
+# replica groups to shard over, e.g. ZNODES=/$USER-0,/$USER-1 ./runclient.sh --scaling (default /$USER)
+ZNODES=${ZNODES:-/$USER}
+
 echo --- Running client
 # args: 4 threads, 10 seconds, keys drawn from a set of 1000
-$JAVA_HOME/bin/java A3Client $ZKSTRING /$USER 4 10 1000
+$JAVA_HOME/bin/java A3Client $ZKSTRING $ZNODES 4 10 1000 "$@"
 
 echo --- Analyzing linearizability
 mkdir lintest_input
@@ -8,4 +8,8 @@ export CLASSPATH=".:gen-java:lib/*"
 KV_PORT=`shuf -i 10000-10999 -n 1`
 echo Port number: $KV_PORT
 
-$JAVA_HOME/bin/java StorageNode `hostname` $KV_PORT $ZKSTRING /$USER
+# replica group to join, e.g. ZNODE=/$USER-1 ./runserver.sh (default /$USER)
+ZNODE=${ZNODE:-/$USER}
+
+# extra flags are passed through, e.g. ./runserver.sh --server=selector --selectors=4 --workers=32
+$JAVA_HOME/bin/java StorageNode `hostname` $KV_PORT $ZKSTRING $ZNODE "$@"
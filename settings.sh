@@ -1,7 +1,10 @@
 ZKSTRING=manta.uwaterloo.ca:2181
 
 unset JAVA_TOOL_OPTIONS
-if [ -f /usr/lib/jvm/default-java/bin/javac ]; then
+# Java 21 first if it is installed: --virtual-threads needs it
+if [ -f /usr/lib/jvm/java-21-openjdk-amd64/bin/javac ]; then
+    JAVA_HOME=/usr/lib/jvm/java-21-openjdk-amd64
+elif [ -f /usr/lib/jvm/default-java/bin/javac ]; then
     JAVA_HOME=/usr/lib/jvm/default-java
 elif [ -f /usr/lib/jvm/java-11-openjdk-amd64/bin/javac ]; then
     JAVA_HOME=/usr/lib/jvm/java-11-openjdk-amd64/